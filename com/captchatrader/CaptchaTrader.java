@@ -23,16 +23,34 @@
  */
 package com.captchatrader;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
 
 /**
  * <p>CaptchaTrader is the main class for interacting with APIs provided by http://api.captchatrader.com.</p>
+ *
+ * <p>One instance may be shared by any number of threads. Its settings are replaced as a whole when one
+ * changes, so each call runs with the settings it started with, and credentials can be rotated with
+ * {@link #setCredentials(String, String) setCredentials()} while calls are under way.</p>
  * 
  * <PRE>
  * Examples:
@@ -72,37 +90,119 @@ import java.util.concurrent.Callable;
 public class CaptchaTrader implements Callable<String>
 {
 	/**
-	 * The API key of the host application.
+	 * The settings calls are made with. Each call reads them once, so it runs with a consistent set
+	 * however they change meanwhile; setters swap in a changed copy.
 	 */
-	private String _apiKey;
+	private static final class Config implements Cloneable
+	{
+		/**
+		 * The API key of the host application.
+		 */
+		private String apiKey;
+		/**
+		 * The username to run under.
+		 */
+		private String username;
+		/**
+		 * The password of the user to run under.
+		 */
+		private String password;
+		/**
+		 * The API hosts to send calls to
+		 */
+		private CaptchaTraderEndpoints endpoints = new CaptchaTraderEndpoints();
+		/**
+		 * The processor shrinking CAPTCHA files of any source before upload
+		 */
+		private CaptchaTraderImageProcessor imageProcessor = null;
+		/**
+		 * Processors shrinking CAPTCHA files of particular sources, overriding imageProcessor; never modified
+		 */
+		private Map<String, CaptchaTraderImageProcessor> sourceImageProcessors =
+			Collections.<String, CaptchaTraderImageProcessor>emptyMap();
+		/**
+		 * Whether long text parameters are compressed for API hosts that accept it
+		 */
+		private boolean compressRequests = false;
+		/**
+		 * The fetcher downloading CAPTCHA URLs for upload, or null to let the service fetch them
+		 */
+		private CaptchaTraderFetcher fetcher = null;
+		/**
+		 * The most submissions allowed in flight at once, or 0 for no limit
+		 */
+		private int maxConcurrentJobs = 0;
+		/**
+		 * Permits for submissions in flight, or null for no limit
+		 */
+		private Semaphore jobPermits = null;
+		/**
+		 * The circuit breaker failing calls fast while the service is failing, or null to always call through
+		 */
+		private CaptchaTraderCircuitBreaker circuitBreaker = null;
+		/**
+		 * The dispatcher delivering ResponseEvent callbacks, or null for the shared default
+		 */
+		private CaptchaTraderDispatcher dispatcher = null;
+		/**
+		 * The journal recording jobs in flight for crash recovery, or null for none
+		 */
+		private CaptchaTraderJournal journal = null;
+		/**
+		 * The index answering CAPTCHA images seen before, or null for none
+		 */
+		private CaptchaTraderImageIndex imageIndex = null;
+
+		private Config copy()
+		{
+			try {
+				return (Config) clone();
+			} catch (CloneNotSupportedException cnse) {
+				throw new AssertionError(cnse);
+			}
+		}
+	}
 	/**
-	 * The username to run under.
+	 * A change to the settings, applied to a copy of them.
 	 */
-	private String _username;
+	private static abstract class Change
+	{
+		abstract void apply(Config config);
+	}
 	/**
-	 * The password of the user to run under.
+	 * The current settings
 	 */
-	private String _password;
+	private final AtomicReference<Config> _config;
 	/**
-	 * The ticket id of the last submitted CAPTCHA.
+	 * The ticket id of the last CAPTCHA submitted through this instance.
 	 */
-	private String _activeJobId = null;
+	private final AtomicReference<String> _activeJobId = new AtomicReference<String>();
 	/**
-	 * The enqueue job id.
+	 * The ticket id of the last CAPTCHA submitted by the current thread.
 	 */
-	private String _enqueueJobId = null;
+	private final ThreadLocal<String> _threadJobId = new ThreadLocal<String>();
 	/**
-	 * The file for asynchronous submission
+	 * The enqueue job id, ENQUEUING while an enqueue call is in flight.
 	 */
-	private File _file = null;
+	private final AtomicReference<String> _enqueueJobId = new AtomicReference<String>();
 	/**
-	 * The URL for asynchronous submission
+	 * Held by _enqueueJobId while an enqueue call is in flight; compared by identity.
 	 */
-	private URL _url = null;
+	private static final String ENQUEUING = new String("ENQUEUING");
 	/**
-	 * The ResponseEvent object for callback upon server response
+	 * Whether warmUp() has completed
 	 */
-	private ResponseEvent _event = null;
+	private volatile boolean _warm = false;
+	/**
+	 * Replies of every shape, parsed by warmUp()
+	 */
+	private static final String[] WARM_UP_REPLIES = {
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?><job id=\"1\"><response>warmup</response></job>",
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?><error status=\"400\">warmup</error>",
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?><success>1</success>",
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?><user><credits>1</credits></user>",
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?><queue><position>0</position><length>0</length><eta>0</eta></queue>",
+	};
 	/**
 	 * Create a new CaptchaTrader instance.
 	 * @param apiKey The API key of the host application.
@@ -110,9 +210,11 @@ public class CaptchaTrader implements Callable<String>
 	 * @param password The password of the user to run under.
 	 */
 	public CaptchaTrader(String apiKey, String username, String password) {
-		_apiKey = apiKey;
-		_username = username;
-		_password = password;
+		Config config = new Config();
+		config.apiKey = apiKey;
+		config.username = username;
+		config.password = password;
+		_config = new AtomicReference<Config>(config);
 	}
 	/**
 	 * Create a new CaptchaTrader instance.
@@ -120,43 +222,391 @@ public class CaptchaTrader implements Callable<String>
 	 * @param password The password of the user to run under.
 	 */
 	public CaptchaTrader(String username, String password) {
-		_username = username;
-		_password = password;
+		this(null, username, password);
 	}
 	/**
 	 * Create a new CaptchaTrader instance.
 	 * @param apiKey The API key of the host application.
 	 */
 	public CaptchaTrader(String apiKey) {
-		_apiKey = apiKey;
+		this(apiKey, null, null);
 	}
 	/**
 	 * Set a new username to run under.
 	 * @param username The username to run under.
 	 * @return This CaptchaTrader instance.
 	 */
-	public CaptchaTrader setUsername(String username) {
-		_username = username;
-		return this;
+	public CaptchaTrader setUsername(final String username) {
+		return change(new Change() {
+			void apply(Config config) { config.username = username; }
+		});
 	}
 	/**
 	 * Set a new password. This does not change the user's password.
 	 * @param password The password of the user.
 	 * @return This CaptchaTrader instance.
 	 */
-	public CaptchaTrader setPassword(String password) {
-		_password = password;
-		return this;
+	public CaptchaTrader setPassword(final String password) {
+		return change(new Change() {
+			void apply(Config config) { config.password = password; }
+		});
+	}
+	/**
+	 * Switch to another user, or rotate a passkey, at once. Calls already under way finish with the
+	 * credentials they started with; no call ever sees the new username with the old password.
+	 * @param username The username to run under.
+	 * @param password The password of the user to run under.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setCredentials(final String username, final String password) {
+		return change(new Change() {
+			void apply(Config config) {
+				config.username = username;
+				config.password = password;
+			}
+		});
 	}
 	/**
 	 * Set the API key of the host application.
 	 * @param apiKey The API key of the host application.
 	 * @return This CaptchaTrader instance.
 	 */
-	public CaptchaTrader setApiKey(String apiKey) {
-		_apiKey = apiKey;
+	public CaptchaTrader setApiKey(final String apiKey) {
+		return change(new Change() {
+			void apply(Config config) { config.apiKey = apiKey; }
+		});
+	}
+	/**
+	 * Send all calls to a single API host, such as a mirror, a local gateway or a test simulator.
+	 * @param baseUrl The scheme, host and optional port of the API host, e.g. http://api.captchatrader.com
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setBaseUrl(String baseUrl) {
+		return setEndpoints(new CaptchaTraderEndpoints(baseUrl));
+	}
+	/**
+	 * Spread calls across a set of API hosts, routing each call to the fastest healthy one.
+	 * The same set may be shared by several CaptchaTrader instances.
+	 * @param endpoints The API hosts to use.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setEndpoints(final CaptchaTraderEndpoints endpoints) {
+		return change(new Change() {
+			void apply(Config config) { config.endpoints = endpoints; }
+		});
+	}
+	/**
+	 * @return The API hosts calls are sent to.
+	 * @since v2012.2
+	 */
+	public CaptchaTraderEndpoints getEndpoints() {
+		return _config.get().endpoints;
+	}
+	/**
+	 * Compress long text parameters, such as CAPTCHA URLs, when the API host advertises that it accepts
+	 * gzip compressed content. Replies are always requested compressed.
+	 * @param compressRequests Whether to compress request parameters.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setRequestCompression(final boolean compressRequests) {
+		return change(new Change() {
+			void apply(Config config) { config.compressRequests = compressRequests; }
+		});
+	}
+	/**
+	 * Fail calls immediately while the service keeps failing them, instead of waiting for each round trip.
+	 * @param circuitBreaker The circuit breaker to use, possibly shared with other instances, or null for none.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setCircuitBreaker(final CaptchaTraderCircuitBreaker circuitBreaker) {
+		return change(new Change() {
+			void apply(Config config) { config.circuitBreaker = circuitBreaker; }
+		});
+	}
+	/**
+	 * Deliver {@link com.captchatrader.ResponseEvent ResponseEvent} callbacks through the given dispatcher,
+	 * instead of the shared default one.
+	 * @param dispatcher The dispatcher to use, possibly shared with other instances, or null for the default.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setDispatcher(final CaptchaTraderDispatcher dispatcher) {
+		return change(new Change() {
+			void apply(Config config) { config.dispatcher = dispatcher; }
+		});
+	}
+	/**
+	 * Record submissions and responses in a journal, so that they survive a crash of this process.
+	 * @param journal The journal to record in, possibly shared with other instances, or null for none.
+	 * @return This CaptchaTrader instance.
+	 * @see #recover()
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setJournal(final CaptchaTraderJournal journal) {
+		return change(new Change() {
+			void apply(Config config) { config.journal = journal; }
+		});
+	}
+	/**
+	 * Answer CAPTCHA images similar to ones solved before from an index, instead of submitting them.
+	 * Applies to CAPTCHAs submitted as files or held in memory.
+	 * @param imageIndex The index to use, possibly shared with other instances, or null for none.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setImageIndex(final CaptchaTraderImageIndex imageIndex) {
+		return change(new Change() {
+			void apply(Config config) { config.imageIndex = imageIndex; }
+		});
+	}
+	/**
+	 * Re-send the responses the journal holds that were never confirmed by the server, such as those
+	 * sent just before a crash. Responses the server rejects are not sent again.
+	 * @return The number of responses re-sent.
+	 * @throws Exception If the server could not be reached; the remaining responses stay in the journal.
+	 * @since v2012.2
+	 */
+	public int recover() throws Exception {
+		CaptchaTraderJournal journal = _config.get().journal;
+		if (journal == null) {
+			return 0;
+		}
+		int sent = 0;
+		for (Map.Entry<String, Boolean> pending : journal.pendingResponses().entrySet()) {
+			try {
+				respond(pending.getKey(), pending.getValue());
+				sent++;
+			} catch (CaptchaTraderException cte) {
+				// rejected or failed fast; the journal keeps it only if the server never saw it
+			}
+		}
+		return sent;
+	}
+	/**
+	 * Limit the number of submissions in flight at once. Further submissions wait for one to finish.
+	 * @param maxConcurrentJobs The most submissions in flight, or 0 for no limit.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setMaxConcurrentJobs(final int maxConcurrentJobs) {
+		final Semaphore jobPermits = maxConcurrentJobs > 0 ? new Semaphore(maxConcurrentJobs) : null;
+		return change(new Change() {
+			void apply(Config config) {
+				config.maxConcurrentJobs = maxConcurrentJobs;
+				config.jobPermits = jobPermits;
+			}
+		});
+	}
+	/**
+	 * @return The most submissions allowed in flight at once, or 0 for no limit.
+	 * @since v2012.2
+	 */
+	public int getMaxConcurrentJobs() {
+		return _config.get().maxConcurrentJobs;
+	}
+	/**
+	 * Download CAPTCHAs submitted by URL on the client and upload the image, instead of
+	 * sending the URL for the service to fetch.
+	 * @param fetcher The fetcher to download with, or null to send URLs.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setFetcher(final CaptchaTraderFetcher fetcher) {
+		return change(new Change() {
+			void apply(Config config) { config.fetcher = fetcher; }
+		});
+	}
+	/**
+	 * Start downloading CAPTCHAs that will be submitted later by URL, so that fetching them
+	 * overlaps the solving of earlier ones. Does nothing unless a fetcher is set.
+	 * @param urls The URLs of the CAPTCHA images.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader prefetch(URL... urls) {
+		CaptchaTraderFetcher fetcher = _config.get().fetcher;
+		if (fetcher != null) {
+			fetcher.prefetch(urls);
+		}
 		return this;
 	}
+	/**
+	 * Shrink CAPTCHA files before they are uploaded.
+	 * @param imageProcessor The processor to use for all sources without one of their own, or null to upload files as they are.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setImageProcessor(final CaptchaTraderImageProcessor imageProcessor) {
+		return change(new Change() {
+			void apply(Config config) { config.imageProcessor = imageProcessor; }
+		});
+	}
+	/**
+	 * Shrink CAPTCHA files of one source before they are uploaded.
+	 * @param source The source name, as passed to {@link #submit(File, String) submit(File, String)}.
+	 * @param imageProcessor The processor to use for this source, or null to fall back to the default processor.
+	 * @return This CaptchaTrader instance.
+	 * @since v2012.2
+	 */
+	public CaptchaTrader setImageProcessor(final String source, final CaptchaTraderImageProcessor imageProcessor) {
+		return change(new Change() {
+			void apply(Config config) {
+				Map<String, CaptchaTraderImageProcessor> processors =
+					new HashMap<String, CaptchaTraderImageProcessor>(config.sourceImageProcessors);
+				if (imageProcessor == null) {
+					processors.remove(source);
+				} else {
+					processors.put(source, imageProcessor);
+				}
+				config.sourceImageProcessors = Collections.unmodifiableMap(processors);
+			}
+		});
+	}
+	/**
+	 * Apply a change to a copy of the settings and swap it in, retrying if another change got in first.
+	 * @return This CaptchaTrader instance.
+	 */
+	private CaptchaTrader change(Change change) {
+		Config current;
+		Config next;
+		do {
+			current = _config.get();
+			next = current.copy();
+			change.apply(next);
+		} while (!_config.compareAndSet(current, next));
+		return this;
+	}
+	/**
+	 * Pay the costs of a first call ahead of time: resolve the API hosts, open a connection to each,
+	 * and load and initialize the request encoding and reply parsing.
+	 * @return The time taken in milliseconds.
+	 * @throws Exception If no API host could be reached.
+	 * @since v2012.2
+	 */
+	public long warmUp() throws Exception {
+		return warmUp(1, 0);
+	}
+	/**
+	 * Pay the costs of a first call ahead of time: resolve the API hosts, open connections to each that
+	 * stay in the keep-alive cache, and load and initialize the request encoding and reply parsing,
+	 * running them on synthetic requests and replies to get them compiled. Reply parsers are prepared for as
+	 * many replies at once as there are connections, whichever threads parse them.
+	 * @param connections The number of connections to open to each host, at most the JVM's http.maxConnections are kept.
+	 * @param iterations The number of synthetic requests to encode and replies to parse.
+	 * @return The time taken in milliseconds.
+	 * @throws Exception If no API host could be reached.
+	 * @since v2012.2
+	 */
+	public long warmUp(int connections, int iterations) throws Exception {
+		long start = System.currentTimeMillis();
+		CaptchaTraderEndpoints endpoints = _config.get().endpoints;
+		for (String baseUrl : endpoints.getBaseUrls()) {
+			try {
+				InetAddress.getAllByName(new URL(baseUrl).getHost());
+			} catch (UnknownHostException uhe) {
+				// reported as unreachable below
+			}
+		}
+		CaptchaTraderParser.init(Math.max(1, connections));
+		for (int i = 0; i < Math.max(1, iterations); i++) {
+			warmUpCodec();
+		}
+		int reachable = 0;
+		for (String baseUrl : endpoints.getBaseUrls()) {
+			if (warmUpConnections(endpoints, baseUrl, connections) > 0) {
+				reachable++;
+			}
+		}
+		if (reachable == 0) {
+			throw new IOException("No API host could be reached");
+		}
+		_warm = true;
+		return System.currentTimeMillis() - start;
+	}
+	/**
+	 * Warm up in a new thread, see {@link #warmUp(int, int) warmUp()}.
+	 * @return A task completing with the time taken in milliseconds, or failing if no API host could be reached.
+	 * @since v2012.2
+	 */
+	public CaptchaTraderTask<Long> warmUpAsync(final int connections, final int iterations) {
+		CaptchaTraderTask<Long> task = new CaptchaTraderTask<Long>(new Callable<Long>() {
+			public Long call()
+				throws Exception
+			{
+				return warmUp(connections, iterations);
+			}
+		});
+		Thread t = new Thread(task, "captchatrader-warmup");
+		t.setDaemon(true);
+		t.start();
+		return task;
+	}
+	/**
+	 * @return Whether {@link #warmUp(int, int) warmUp()} has completed, for gating readiness checks.
+	 * @since v2012.2
+	 */
+	public boolean isWarm() {
+		return _warm;
+	}
+	/**
+	 * Encode a synthetic submission and parse a reply of every shape.
+	 */
+	private void warmUpCodec()
+		throws Exception
+	{
+		CaptchaTraderRequest request = new CaptchaTraderRequest(CaptchaTraderEndpoints.DEFAULT_BASE_URL,
+																CaptchaTraderRequestType.SUBMIT);
+		request.setCompressParameters(true);
+		request.setParameter("username", "warmup");
+		StringBuilder url = new StringBuilder("http://localhost/captcha?");
+		while (url.length() < 1024) {
+			url.append("warmup=").append(url.length()).append('&');
+		}
+		request.setParameter("value", url.toString());
+		byte[] image = new byte[256];
+		CaptchaTraderImageProcessor processor = imageProcessor(_config.get(), null);
+		if (processor != null) {
+			BufferedImage bi = new BufferedImage(32, 16, BufferedImage.TYPE_INT_RGB);
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			ImageIO.write(bi, "png", png);
+			image = png.toByteArray();
+			request.setImageProcessor(processor);
+		}
+		request.setParameter("value", "warmup.png", image);
+		for (String reply : WARM_UP_REPLIES) {
+			parseResponses(new ByteArrayInputStream(reply.getBytes("UTF-8")), 3);
+		}
+	}
+	/**
+	 * Open connections to a host at once, so that they all go back to the keep-alive cache.
+	 * @return The number of connections opened.
+	 */
+	private static int warmUpConnections(final CaptchaTraderEndpoints endpoints, final String baseUrl, int connections)
+		throws InterruptedException
+	{
+		final AtomicInteger opened = new AtomicInteger();
+		Thread[] threads = new Thread[Math.max(1, connections)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run()
+				{
+					if (endpoints.probe(baseUrl) >= 0) {
+						opened.incrementAndGet();
+					}
+				}
+			}, "captchatrader-warmup-" + i);
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		return opened.get();
+	}
 	/**
 	 * Submit a CAPTCHA currently saved as a file.
 	 * @param file The file that the CAPTCHA is saved as.
@@ -167,9 +617,52 @@ public class CaptchaTrader implements Callable<String>
 	 * </br>
 	 */
 	public String submit(File file) throws Exception {
-		CaptchaTraderRequest request = new CaptchaTraderRequest();
+		return submit(file, (String) null);
+	}
+	/**
+	 * Submit a CAPTCHA currently saved as a file, shrinking it with the image processor of its source.
+	 * @param file The file that the CAPTCHA is saved as.
+	 * @param source The source of the CAPTCHA, as given to {@link #setImageProcessor(String, CaptchaTraderImageProcessor) setImageProcessor()}.
+	 * @return The decoded CAPTCHA.
+	 * @throws Exception Any exception sent by the server.
+	 * <br>
+	 * For a list of error codes, see <a href=http://captchatrader.com/documentation/submit target=_blank>http://captchatrader.com/documentation/submit</a>
+	 * </br>
+	 * @since v2012.2
+	 */
+	public String submit(File file, String source) throws Exception {
+		Config config = _config.get();
+		CaptchaTraderRequest request = newRequest(config, CaptchaTraderRequestType.SUBMIT);
+		request.setImageProcessor(imageProcessor(config, source));
 		request.setParameter("value", file);
-		return submitJob(request);
+		return submitJob(config, request, file);
+	}
+	/**
+	 * Submit a CAPTCHA image held in memory.
+	 * @param filename The name of the image, whose extension tells its format.
+	 * @param image The image.
+	 * @return The decoded CAPTCHA.
+	 * @throws Exception Any exception sent by the server.
+	 * <br>
+	 * For a list of error codes, see <a href=http://captchatrader.com/documentation/submit target=_blank>http://captchatrader.com/documentation/submit</a>
+	 * </br>
+	 * @since v2012.2
+	 */
+	public String submit(String filename, byte[] image) throws Exception {
+		return submitImage(filename, image)[1];
+	}
+	/**
+	 * Submit a CAPTCHA image held in memory, keeping its ticket.
+	 * @return The ticket id and the decoded CAPTCHA.
+	 */
+	String[] submitImage(String filename, byte[] image)
+		throws Exception
+	{
+		Config config = _config.get();
+		CaptchaTraderRequest request = newRequest(config, CaptchaTraderRequestType.SUBMIT);
+		request.setImageProcessor(imageProcessor(config, null));
+		request.setParameter("value", filename, image);
+		return submitTicket(config, request, image);
 	}
 	/**
 	 * Submit a CAPTCHA already hosted on an existing website.
@@ -181,33 +674,147 @@ public class CaptchaTrader implements Callable<String>
 	 * </br>
 	 */
 	public String submit(URL url) throws Exception {
-		CaptchaTraderRequest request = new CaptchaTraderRequest();
-		request.setParameter("value", url.toString());
-		return submitJob(request);
+		Config config = _config.get();
+		CaptchaTraderRequest request = newRequest(config, CaptchaTraderRequestType.SUBMIT);
+		setValue(config, request, url);
+		return submitJob(config, request, url);
+	}
+	/**
+	 * Set the value of a submission to a CAPTCHA URL, or to the image itself when a fetcher is set.
+	 */
+	private void setValue(Config config, CaptchaTraderRequest request, URL url)
+		throws IOException
+	{
+		CaptchaTraderFetcher fetcher = config.fetcher;
+		if (fetcher == null) {
+			request.setParameter("value", url.toString());
+		} else {
+			byte[] image = fetcher.get(url);
+			request.setImageProcessor(imageProcessor(config, null));
+			request.setParameter("value", CaptchaTraderFetcher.filename(url, image), image);
+		}
 	}
 	/**
 	 * Complete a job submission.
+	 * @param config The settings the request was made with.
 	 * @param request The CaptchaTraderRequest of the job.
+	 * @param captcha The File, URL or image submitted, by which the journal and the image index recognize it.
 	 * @return The decoded CAPTCHA.
 	 * @throws CaptchaTraderException An error has been returned by this API call
 	 * @throws Exception Any exception sent by the server.
 	 */
-	private String submitJob(CaptchaTraderRequest request)
+	private String submitJob(Config config, CaptchaTraderRequest request, Object captcha)
 		throws Exception
 	{
-		request.setParameter("username", _username);
-		request.setParameter("password", _password);
-		request.setParameter("api_key", _apiKey);
+		return submitTicket(config, request, captcha)[1];
+	}
+	/**
+	 * Complete a job submission, keeping its ticket.
+	 * @param config The settings the request was made with.
+	 * @param request The CaptchaTraderRequest of the job.
+	 * @param captcha The File, URL or image submitted, by which the journal and the image index recognize it.
+	 * @return The ticket id and the decoded CAPTCHA.
+	 * @throws CaptchaTraderException An error has been returned by this API call
+	 * @throws Exception Any exception sent by the server.
+	 */
+	private String[] submitTicket(Config config, CaptchaTraderRequest request, Object captcha)
+		throws Exception
+	{
+		CaptchaTraderJournal journal = config.journal;
+		String key = null;
+		if (journal != null) {
+			key = CaptchaTraderJournal.key(captcha);
+			// solved before a crash but never used; submitting again would pay twice
+			String[] known = journal.answered(key);
+			if (known != null) {
+				assigned(known[0]);
+				return known;
+			}
+		}
+		CaptchaTraderImageIndex index = config.imageIndex;
+		CaptchaTraderImageIndex.Print print = index == null ? null : CaptchaTraderImageIndex.print(captcha);
+		if (print != null) {
+			String[] known = index.find(print);
+			if (known != null) {
+				assigned(known[0]);
+				return known;
+			}
+		}
+
+		request.setParameter("username", config.username);
+		request.setParameter("password", config.password);
+		request.setParameter("api_key", config.apiKey);
 		
-		InputStream in = request.doPost();
-		String[] response = parseResponses(in, CaptchaTraderRequestType.SUBMIT.respSize());
-		if(Integer.parseInt(response[0]) == -1) {
-			throw new CaptchaTraderException(response[1]);
+		Semaphore permits = config.jobPermits;
+		if (permits != null) {
+			permits.acquire();
+		}
+		long journalId = 0;
+		String[] response = null;
+		try {
+			if (journal != null) {
+				journalId = journal.submitting(key);
+			}
+			response = execute(config, request);
+		} finally {
+			if (permits != null) {
+				permits.release();
+			}
+			if (journal != null && (response == null || "-1".equals(response[0]))) {
+				journal.failed(journalId);
+			}
+		}
+		if("-1".equals(response[0])) {
+			throw new CaptchaTraderException(response[1], response[2]);
 		} else {
-			_activeJobId = response[0];
-			return response[1];
+			if (journal != null) {
+				journal.submitted(journalId, response[0], response[1]);
+			}
+			if (print != null) {
+				index.add(print, response[0], response[1]);
+			}
+			assigned(response[0]);
+			return response;
 		}
 	}
+	/**
+	 * Make a ticket the one to respond to, unless the job it was assigned to has been cancelled.
+	 */
+	private void assigned(String ticket)
+	{
+		CaptchaTraderTask<?> task = CaptchaTraderTask.current();
+		if (task != null) {
+			task.assign(ticket);
+			if (task.isCancelled()) {
+				// left on the task for the application to respond to
+				return;
+			}
+		}
+		_threadJobId.set(ticket);
+		_activeJobId.set(ticket);
+	}
+	/**
+	 * Submit a CAPTCHA file or URL, keeping its ticket.
+	 * @param captcha A File or a URL.
+	 * @return The ticket id and the decoded CAPTCHA.
+	 * @throws CaptchaTraderException An error has been returned by this API call
+	 * @throws Exception Any exception sent by the server.
+	 */
+	String[] submitCaptcha(Object captcha)
+		throws Exception
+	{
+		Config config = _config.get();
+		CaptchaTraderRequest request = newRequest(config, CaptchaTraderRequestType.SUBMIT);
+		if (captcha instanceof File) {
+			request.setImageProcessor(imageProcessor(config, null));
+			request.setParameter("value", (File) captcha);
+		} else if (captcha instanceof URL) {
+			setValue(config, request, (URL) captcha);
+		} else {
+			throw new CaptchaTraderException("A CAPTCHA must be a File or a URL, not " + captcha);
+		}
+		return submitTicket(config, request, captcha);
+	}
 	/**
 	 * Respond to the last sent job.
 	 * @param isCorrect Whether the job was correct or not.
@@ -218,27 +825,63 @@ public class CaptchaTrader implements Callable<String>
 	 * </br>
 	 */
 	public void respond(boolean isCorrect) throws Exception {
-		int jobId = 0;
+		// the calling thread's own job, if it sent one, else whichever was sent last, such as in asynchronous mode
+		String ticket = _threadJobId.get();
+		if (ticket == null) {
+			ticket = _activeJobId.get();
+		}
+		long jobId = 0;
 		try {
-			if (_activeJobId!=null) {
-				jobId = Integer.parseInt(_activeJobId);
+			if (ticket!=null) {
+				jobId = Long.parseLong(ticket);
 			}
 		} catch (Exception ex) {}
-		if(jobId <= 0) {
+		if(jobId <= 0 && !CaptchaTraderImageIndex.isReused(ticket)) {
 			throw new CaptchaTraderException("No job to respond to");
 		} else {
-			CaptchaTraderRequest request = new CaptchaTraderRequest(CaptchaTraderRequestType.RESPOND);
-			request.setParameter("username", _username);
-			request.setParameter("password", _password);
-			request.setParameter("ticket", _activeJobId);
-			request.setParameter("is_correct", isCorrect);
+			respond(ticket, isCorrect);
+			_threadJobId.remove();
+			_activeJobId.compareAndSet(ticket, null);
+		}
+	}
+	/**
+	 * Respond to a job by its ticket, such as that of a cancelled {@link com.captchatrader.CaptchaTraderTask CaptchaTraderTask}.
+	 * @param ticket The ticket id of the job.
+	 * @param isCorrect Whether the job was correct or not.
+	 * @throws CaptchaTraderException An error has been returned by this API call
+	 * @throws Exception Any other exception sent by the server.
+	 * <br>
+	 * For a list of error codes, see <a href=http://captchatrader.com/documentation/respond target=_blank>http://captchatrader.com/documentation/respond</a>
+	 * </br>
+	 * @since v2012.2
+	 */
+	public void respond(String ticket, boolean isCorrect) throws Exception {
+		Config config = _config.get();
+		CaptchaTraderImageIndex index = config.imageIndex;
+		if (index != null) {
+			index.respond(ticket, isCorrect);
+		}
+		if (CaptchaTraderImageIndex.isReused(ticket)) {
+			// about an answer reused from an index, not about the solver's work, whatever index is set now
+			return;
+		}
+		CaptchaTraderJournal journal = config.journal;
+		if (journal != null) {
+			journal.responding(ticket, isCorrect);
+		}
+		CaptchaTraderRequest request = newRequest(config, CaptchaTraderRequestType.RESPOND);
+		request.setParameter("username", config.username);
+		request.setParameter("password", config.password);
+		request.setParameter("ticket", ticket);
+		request.setParameter("is_correct", isCorrect);
 
-			InputStream in = request.doPost();
-			String[] response = parseResponses(in, CaptchaTraderRequestType.RESPOND.respSize());
-			if("-1".equals(response[0])) {
-				throw new CaptchaTraderException(response[1]);
-			}
-			_activeJobId = null;
+		String[] response = execute(config, request);
+		if (journal != null) {
+			// the server has seen it, whether it took it or not
+			journal.responded(ticket);
+		}
+		if("-1".equals(response[0])) {
+			throw new CaptchaTraderException(response[1], response[2]);
 		}
 	}
 	/**
@@ -252,11 +895,11 @@ public class CaptchaTrader implements Callable<String>
 	 */
 	public int getCredits() throws Exception
 	{
-		InputStream in = (new CaptchaTraderRequest(CaptchaTraderRequestType.QUERY_CREDIT,
-												   _username, _password)).doGet();
-		String[] response = parseResponses(in, CaptchaTraderRequestType.QUERY_CREDIT.respSize());
+		Config config = _config.get();
+		String[] response = execute(config, newRequest(config, CaptchaTraderRequestType.QUERY_CREDIT,
+													   config.username, config.password));
 		if(Integer.parseInt(response[0]) == -1) {
-			throw new CaptchaTraderException(response[1]);
+			throw new CaptchaTraderException(response[1], response[2]);
 		}
 		return Integer.parseInt(response[1]);
 	}
@@ -272,13 +915,7 @@ public class CaptchaTrader implements Callable<String>
 	public int getWaitTime()
 		throws Exception
 	{
-		InputStream in = (new CaptchaTraderRequest(CaptchaTraderRequestType.QUERY_WAIT_TIME,
-														 _username, _password)).doGet();
-		String[] response = parseResponses(in, CaptchaTraderRequestType.QUERY_WAIT_TIME.respSize());
-		if(Integer.parseInt(response[0]) == -1) {
-			throw new CaptchaTraderException(response[1]);
-		}
-		return Integer.parseInt(response[2]);
+		return getQueue()[2];
 	}
 	/**
 	 * Get the solver queue size
@@ -289,17 +926,31 @@ public class CaptchaTrader implements Callable<String>
 	public int[] getQueueSize()
 		throws Exception
 	{
-	    InputStream in = (new CaptchaTraderRequest(CaptchaTraderRequestType.QUERY_WAIT_TIME,
-												   _username, _password)).doGet();
-		String[] response = parseResponses(in, CaptchaTraderRequestType.QUERY_WAIT_TIME.respSize());
-		if(Integer.parseInt(response[0]) == -1) {
-			throw new CaptchaTraderException(response[1]);
-		}
+		int[] queue = getQueue();
 		int[] qSize = new int[2];
-		qSize[0] = Integer.parseInt(response[0]);
-		qSize[1] = Integer.parseInt(response[1]);
+		qSize[0] = queue[0];
+		qSize[1] = queue[1];
 		return qSize;
 	}
+	/**
+	 * Get the solver queue in one call.
+	 * @return The number of users ahead of the requesting user, the total queue size and the estimated wait time in seconds.
+	 */
+	int[] getQueue()
+		throws Exception
+	{
+		Config config = _config.get();
+		String[] response = execute(config, newRequest(config, CaptchaTraderRequestType.QUERY_WAIT_TIME,
+													   config.username, config.password));
+		if(Integer.parseInt(response[0]) == -1) {
+			throw new CaptchaTraderException(response[1], response[2]);
+		}
+		int[] queue = new int[3];
+		queue[0] = Integer.parseInt(response[0]);
+		queue[1] = Integer.parseInt(response[1]);
+		queue[2] = Integer.parseInt(response[2]);
+		return queue;
+	}
 	/**
 	 * Add a user to the job delegation queue.
 	 * @return A data URI of a base64 encoded image.
@@ -312,19 +963,25 @@ public class CaptchaTrader implements Callable<String>
 	public String enqueue()
 		throws Exception
 	{
-		if (_enqueueJobId!=null) {
+		if (!_enqueueJobId.compareAndSet(null, ENQUEUING)) {
 			throw new CaptchaTraderException("Max 1 enqueue connection limit reached");
 		}
 
-		CaptchaTraderRequest ctRequest = new CaptchaTraderRequest(CaptchaTraderRequestType.ENQUEUE,
-																  _username, _password);
-		InputStream in = ctRequest.doGet();
-
-		String[] response = parseResponses(in, CaptchaTraderRequestType.ENQUEUE.respSize());
+		Config config = _config.get();
+		String[] response = null;
+		try {
+			response = execute(config, newRequest(config, CaptchaTraderRequestType.ENQUEUE,
+												  config.username, config.password));
+		} finally {
+			if (response == null || "-1".equals(response[0])) {
+				_enqueueJobId.compareAndSet(ENQUEUING, null);
+			}
+		}
 		if(Integer.parseInt(response[0]) == -1) {
-			throw new CaptchaTraderException(response[1]);
+			throw new CaptchaTraderException(response[1], response[2]);
 		}
-		_enqueueJobId = response[0];
+		// unless dequeued meanwhile
+		_enqueueJobId.compareAndSet(ENQUEUING, response[0]);
 		return response[1];
 	}
 
@@ -340,18 +997,17 @@ public class CaptchaTrader implements Callable<String>
 	public int dequeue()
 		throws Exception
 	{
-		CaptchaTraderRequest request = new CaptchaTraderRequest(CaptchaTraderRequestType.DEQUEUE);
-		request.setParameter("username", _username);
-		request.setParameter("password", _password);
-
-		InputStream in = request.doPost();
+		Config config = _config.get();
+		CaptchaTraderRequest request = newRequest(config, CaptchaTraderRequestType.DEQUEUE);
+		request.setParameter("username", config.username);
+		request.setParameter("password", config.password);
 
-		_enqueueJobId = null;
+		_enqueueJobId.set(null);
 
-		String[] response = parseResponses(in, CaptchaTraderRequestType.DEQUEUE.respSize());
+		String[] response = execute(config, request);
 
 		if("-1".equals(response[0])) {
-			throw new CaptchaTraderException(response[1]);
+			throw new CaptchaTraderException(response[1], response[2]);
 		}
 
 		return 0;
@@ -369,25 +1025,138 @@ public class CaptchaTrader implements Callable<String>
 	public int answer(String value)
 		throws Exception
 	{
-		if (_enqueueJobId==null) {
+		// take the job, so that it is answered once however many threads try
+		String ticket = _enqueueJobId.get();
+		if (ticket==null || ticket==ENQUEUING || !_enqueueJobId.compareAndSet(ticket, null)) {
 			throw new CaptchaTraderException("No enqueued job found");
 		}
-		CaptchaTraderRequest request = new CaptchaTraderRequest(CaptchaTraderRequestType.ANSWER);
-		request.setParameter("username", _username);
-		request.setParameter("password", _password);
-		request.setParameter("ticket", _enqueueJobId);
+		Config config = _config.get();
+		CaptchaTraderRequest request = newRequest(config, CaptchaTraderRequestType.ANSWER);
+		request.setParameter("username", config.username);
+		request.setParameter("password", config.password);
+		request.setParameter("ticket", ticket);
 		request.setParameter("value", value);
-		_enqueueJobId = null;
 
-		InputStream in = request.doPost();
-
-		String[] response = parseResponses(in, CaptchaTraderRequestType.ANSWER.respSize());
+		String[] response = execute(config, request);
 		if("-1".equals(response[0])) {
-			throw new CaptchaTraderException(response[1]);
+			throw new CaptchaTraderException(response[1], response[2]);
 		}
 		return 0;
 	}
 
+	private static CaptchaTraderImageProcessor imageProcessor(Config config, String source)
+	{
+		if (source != null) {
+			CaptchaTraderImageProcessor imageProcessor = config.sourceImageProcessors.get(source);
+			if (imageProcessor != null) {
+				return imageProcessor;
+			}
+		}
+		return config.imageProcessor;
+	}
+
+	private static CaptchaTraderRequest newRequest(Config config, CaptchaTraderRequestType type)
+		throws IOException, CaptchaTraderException
+	{
+		String baseUrl = config.endpoints.select();
+		CaptchaTraderCircuitBreaker breaker = config.circuitBreaker;
+		if (breaker != null) {
+			breaker.check(type, baseUrl, config.username);
+		}
+		CaptchaTraderRequest request = new CaptchaTraderRequest(baseUrl, type);
+		request.setCompressParameters(config.compressRequests && config.endpoints.acceptsCompression(baseUrl));
+		return request;
+	}
+
+	private static CaptchaTraderRequest newRequest(Config config, CaptchaTraderRequestType type,
+												   String username, String password)
+		throws IOException, CaptchaTraderException
+	{
+		String baseUrl = config.endpoints.select();
+		CaptchaTraderCircuitBreaker breaker = config.circuitBreaker;
+		if (breaker != null) {
+			breaker.check(type, baseUrl, username);
+		}
+		return new CaptchaTraderRequest(baseUrl, type, username, password);
+	}
+
+	/**
+	 * Send a request to its API host and parse the reply, keeping the host's health and round trip time
+	 * and the circuit breaker up to date.
+	 */
+	private String[] execute(Config config, CaptchaTraderRequest request)
+		throws Exception
+	{
+		CaptchaTraderRequestType type = request.type();
+		CaptchaTraderEndpoints endpoints = config.endpoints;
+		CaptchaTraderCircuitBreaker breaker = config.circuitBreaker;
+		String username = config.username;
+		// a cancelled task aborts the request it is running
+		CaptchaTraderTask<?> task = CaptchaTraderTask.current();
+		if (task != null && !task.attach(request)) {
+			throw new CaptchaTraderException("Job has been cancelled");
+		}
+		try {
+			if (breaker != null) {
+				breaker.acquire(type, request.baseUrl(), username);
+			}
+		} catch (CaptchaTraderException cte) {
+			if (task != null) {
+				task.detach(request);
+			}
+			throw cte;
+		}
+		long start = System.currentTimeMillis();
+		String[] response = null;
+		try {
+			InputStream in = type.doPost() ? request.doPost() : request.doGet();
+			response = parseResponses(in, type.respSize());
+		} catch (IOException ioe) {
+			if (request.isAborted()) {
+				// says nothing about the host
+				if (breaker != null) {
+					breaker.release(type, request.baseUrl(), username);
+					breaker = null;
+				}
+				throw ioe;
+			}
+			endpoints.reportFailure(request.baseUrl());
+			if (breaker != null) {
+				breaker.onFailure(type, request.baseUrl(), username,
+								  CaptchaTraderErrorType.RETRYABLE, null, ioe.toString());
+				breaker = null;
+			}
+			throw ioe;
+		} catch (Exception e) {
+			// a malformed reply is a failure of the host, not a success that would close a probing circuit
+			endpoints.reportFailure(request.baseUrl());
+			if (breaker != null) {
+				breaker.onFailure(type, request.baseUrl(), username,
+								  CaptchaTraderErrorType.RETRYABLE, null, e.toString());
+				breaker = null;
+			}
+			throw e;
+		} finally {
+			if (breaker != null) {
+				if (response != null && "-1".equals(response[0])) {
+					breaker.onFailure(type, request.baseUrl(), username,
+									  CaptchaTraderErrorType.classify(response[2], response[1]),
+									  response[2], response[1]);
+				} else {
+					breaker.onSuccess(type, request.baseUrl(), username);
+				}
+			}
+			if (task != null) {
+				task.detach(request);
+			}
+		}
+		// a submission waits for a solver, so its time says nothing about the network
+		long rtt = type == CaptchaTraderRequestType.SUBMIT ? -1 : System.currentTimeMillis() - start;
+		endpoints.reportSuccess(request.baseUrl(), rtt);
+		endpoints.reportAcceptsCompression(request.baseUrl(), request.acceptsCompression());
+		return response;
+	}
+
 	private String[] parseResponses(InputStream in, int respSize)
 		throws Exception
 	{
@@ -419,23 +1188,14 @@ public class CaptchaTrader implements Callable<String>
 	public CaptchaTraderTask submit(File file, CaptchaTraderTask task)
 		throws CaptchaTraderException
 	{
-		if (_url!=null || _file!=null) {
-			throw new CaptchaTraderException("Last submitted job has not completed yet.");
-		}
-		_file = file;
-
-		// Run the task in a new thread
-		Thread t = new Thread(task);
-		t.start();
-
-		return task;
+		return startAsync(task, file, null);
 	}
 	/**
 	 * Submit a CAPTCHA already hosted on an existing website, in asynchronous mode.
 	 * @param url The URL of the CAPTCHA image.
 	 * @param task The CaptchaTraderTask for this submission.
 	 * @return The passed-in CaptchaTraderTask object
-	 * @throws CaptchaTraderException If last submitted job is not completed yet.
+	 * @throws CaptchaTraderException If the task has already been submitted.
 	 * <br>
 	 * For a list of error codes, see <a href=http://captchatrader.com/documentation/submit target=_blank>http://captchatrader.com/documentation/submit</a>
 	 * </br>
@@ -444,22 +1204,14 @@ public class CaptchaTrader implements Callable<String>
 	public CaptchaTraderTask submit(URL url, CaptchaTraderTask task)
 		throws CaptchaTraderException
 	{
-		if (_url!=null || _file!=null) {
-			throw new CaptchaTraderException("Last submitted job has not completed yet.");
-		}
-		_url = url;
-
-		// Run the task in a new thread
-		Thread t = new Thread(task);
-		t.start();
-
-		return task;
+		return startAsync(task, url, null);
 	}
 
 	/**
 	 * Submit a CAPTCHA currently saved as a file, in asynchronous mode.
 	 * @param file The file that the CAPTCHA is saved as.
-	 * @param event The ResponseEvent object for callback upon server response
+	 * @param event The ResponseEvent object for callback upon server response; a
+	 * {@link com.captchatrader.ResponseListener ResponseListener} is also told about failure and timeout
 	 * @return The passed-in ResponseEvent object
 	 * @throws Exception Any exceptions sent by the server.
 	 * <br>
@@ -470,15 +1222,14 @@ public class CaptchaTrader implements Callable<String>
 	public ResponseEvent submit(File file, ResponseEvent event)
 		throws Exception
 	{
-		_event = event;
-
-		submit(file, getTask());
+		startAsync(getTask(), file, event);
 		return event;
 	}
 	/**
 	 * Submit a CAPTCHA already hosted on an existing website, in asynchronous mode.
 	 * @param url The URL of the CAPTCHA image.
-	 * @param event The ResponseEvent object for callback upon server response
+	 * @param event The ResponseEvent object for callback upon server response; a
+	 * {@link com.captchatrader.ResponseListener ResponseListener} is also told about failure and timeout
 	 * @return The passed-in ResponseEvent object
 	 * @throws Exception Any exceptions sent by the server.
 	 * <br>
@@ -489,33 +1240,78 @@ public class CaptchaTrader implements Callable<String>
 	public ResponseEvent submit(URL url, ResponseEvent event)
 		throws Exception
 	{
-		_event = event;
-		submit(url, getTask());
+		startAsync(getTask(), url, event);
 		return event;
 	}
 
+	/**
+	 * Hand a job to a task and run the task in a new thread. The job travels with the task, so any
+	 * number of jobs may be in flight at once.
+	 */
+	private CaptchaTraderTask<?> startAsync(final CaptchaTraderTask<?> task, Object captcha, ResponseEvent event)
+		throws CaptchaTraderException
+	{
+		if (!task.hand(captcha, event)) {
+			throw new CaptchaTraderException("This task has already been submitted");
+		}
+		task.onCancel(new Runnable() {
+			public void run()
+			{
+				cancelled(task);
+			}
+		});
+
+		// Run the task in a new thread
+		Thread t = new Thread(task);
+		t.start();
+
+		return task;
+	}
+	/**
+	 * Drop the job of a task cancelled before it picked the job up, telling its listener.
+	 */
+	private void cancelled(CaptchaTraderTask<?> task)
+	{
+		Object[] job = task.take();
+		if (job != null && job[1] != null) {
+			dispatcher(_config.get()).open((ResponseEvent) job[1])
+				.failed(new CancellationException("Job has been cancelled"));
+		}
+	}
+	private static CaptchaTraderDispatcher dispatcher(Config config)
+	{
+		return config.dispatcher != null ? config.dispatcher : CaptchaTraderDispatcher.getDefault();
+	}
+
 	/**
 	 * Application should not call this method directly
 	 */
 	public String call()
 		throws Exception
 	{
-		CaptchaTraderRequest request = new CaptchaTraderRequest();
-		if (_file!=null) {
-			request.setParameter("value", _file);
-		} else if(_url!=null) {
-			request.setParameter("value", _url.toString());
-		} else {
-			throw new CaptchaTraderException("No File or URL specified for this job");
-		}
-		String result = submitJob(request);
+		CaptchaTraderTask<?> task = CaptchaTraderTask.current();
+		// take the job, so that nothing of it is left behind once the task is done
+		Object[] job = task != null ? task.take() : null;
+		Object captcha = job != null ? job[0] : null;
+		ResponseEvent event = job != null ? (ResponseEvent) job[1] : null;
+		CaptchaTraderDispatcher.Callback callback = event != null ? dispatcher(_config.get()).open(event) : null;
 
-		_url = null;
-		_file = null;
+		String result;
+		try {
+			if (captcha == null) {
+				throw new CaptchaTraderException("No File or URL specified for this job");
+			}
+			result = submitCaptcha(captcha)[1];
+		} catch (Exception e) {
+			if (callback != null) {
+				callback.failed(task != null && task.isCancelled() ? new CancellationException("Job has been cancelled") : e);
+			}
+			throw e;
+		}
 
-		if (_event!=null) {
-			_event.respond(result);
-			_event = null;
+		// Callbacks run on the dispatcher's threads, never on this one
+		if (callback != null) {
+			callback.succeeded(result);
 		}
 
 		return result;
@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>CaptchaTraderCircuitBreaker makes calls fail fast while the service is failing them anyway, so that
+ * callers do not tie up threads waiting for round trips that are bound to fail.</p>
+ *
+ * <p>Failures are classified by {@link com.captchatrader.CaptchaTraderErrorType CaptchaTraderErrorType}.
+ * Retryable and overload errors, including network failures, are counted per endpoint and account: after
+ * {@link #setFailureThreshold(int) a number of them} in a row the circuit opens and calls to that endpoint
+ * on that API host for that account fail immediately. An authentication error opens a circuit for every
+ * call of the account, and running out of credits opens one for its submissions, both on the first
+ * occurrence. Errors caused by the call itself do not count.</p>
+ *
+ * <p>Once an open circuit's time is up it turns half-open and lets a single call through as a probe.
+ * If the probe succeeds the circuit closes; if it fails the circuit opens again for twice as long,
+ * up to {@link #setMaxOpenTime(long) a limit}. Fast failures are thrown as
+ * {@link com.captchatrader.CaptchaTraderException CaptchaTraderException} with the error type that opened
+ * the circuit. A breaker may be shared by several CaptchaTrader instances.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderCircuitBreaker breaker = new CaptchaTraderCircuitBreaker()
+ *        .setFailureThreshold(5)
+ *        .setOpenTime(10000);
+ *    ct.setCircuitBreaker(breaker);
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderCircuitBreaker
+{
+	/**
+	 * The states of a circuit.
+	 */
+	public enum State
+	{
+		/**
+		 * Calls go through.
+		 */
+		CLOSED,
+		/**
+		 * Calls fail immediately.
+		 */
+		OPEN,
+		/**
+		 * A single probe call is let through to test whether the service has recovered.
+		 */
+		HALF_OPEN
+	}
+
+	private static class Circuit
+	{
+		State state = State.CLOSED;
+		int failures = 0;
+		long openUntil = 0;
+		long openMillis = 0;
+		boolean probing = false;
+		CaptchaTraderErrorType errorType = null;
+		String status = null;
+		String message = null;
+	}
+
+	private int _failureThreshold = 5;
+	private long _openMillis = 10000;
+	private long _accountOpenMillis = 60000;
+	private long _maxOpenMillis = 300000;
+	private Map<String, Circuit> _circuits = new HashMap<String, Circuit>();
+
+	/**
+	 * Set the number of consecutive retryable or overload failures that open an endpoint's circuit.
+	 * @return This CaptchaTraderCircuitBreaker instance.
+	 */
+	public synchronized CaptchaTraderCircuitBreaker setFailureThreshold(int failures)
+	{
+		_failureThreshold = failures;
+		return this;
+	}
+
+	/**
+	 * Set how long an endpoint's circuit stays open before a probe is let through.
+	 * @return This CaptchaTraderCircuitBreaker instance.
+	 */
+	public synchronized CaptchaTraderCircuitBreaker setOpenTime(long millis)
+	{
+		_openMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Set how long an account's circuit stays open after an authentication or credits error before a probe is let through.
+	 * @return This CaptchaTraderCircuitBreaker instance.
+	 */
+	public synchronized CaptchaTraderCircuitBreaker setAccountOpenTime(long millis)
+	{
+		_accountOpenMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Set the longest a circuit stays open, however many probes have failed.
+	 * @return This CaptchaTraderCircuitBreaker instance.
+	 */
+	public synchronized CaptchaTraderCircuitBreaker setMaxOpenTime(long millis)
+	{
+		_maxOpenMillis = millis;
+		return this;
+	}
+
+	/**
+	 * @return The state of the circuit of one endpoint on one API host for one account.
+	 */
+	public synchronized State getState(CaptchaTraderRequestType type, String baseUrl, String username)
+	{
+		Circuit circuit = _circuits.get(endpointKey(type, baseUrl, username));
+		return circuit == null ? State.CLOSED : circuit.state;
+	}
+
+	/**
+	 * @return The state of the circuit covering every call of one account.
+	 */
+	public synchronized State getAccountState(String username)
+	{
+		Circuit circuit = _circuits.get(accountKey(username));
+		return circuit == null ? State.CLOSED : circuit.state;
+	}
+
+	/**
+	 * Fail fast if a call would be rejected, without claiming a half-open probe.
+	 * Used before the work of building a request.
+	 * @throws CaptchaTraderException If a circuit covering the call is open.
+	 */
+	synchronized void check(CaptchaTraderRequestType type, String baseUrl, String username)
+		throws CaptchaTraderException
+	{
+		long now = System.currentTimeMillis();
+		for (String key : keys(type, baseUrl, username)) {
+			Circuit circuit = _circuits.get(key);
+			if (circuit != null && circuit.state != State.CLOSED
+				&& (circuit.state == State.HALF_OPEN ? circuit.probing : now < circuit.openUntil)) {
+				throw open(circuit, key);
+			}
+		}
+	}
+
+	/**
+	 * Admit a call, claiming the probe of any circuit covering it that is due one.
+	 * Every admitted call must be followed by {@link #onSuccess onSuccess}, {@link #onFailure onFailure}
+	 * or {@link #release release}.
+	 * @throws CaptchaTraderException If a circuit covering the call is open.
+	 */
+	synchronized void acquire(CaptchaTraderRequestType type, String baseUrl, String username)
+		throws CaptchaTraderException
+	{
+		check(type, baseUrl, username);
+		for (String key : keys(type, baseUrl, username)) {
+			Circuit circuit = _circuits.get(key);
+			if (circuit != null && circuit.state != State.CLOSED) {
+				circuit.state = State.HALF_OPEN;
+				circuit.probing = true;
+			}
+		}
+	}
+
+	/**
+	 * Record an admitted call that was abandoned before it got a reply, and so says nothing either way.
+	 * A probe it claimed is given up for the next call to take.
+	 */
+	synchronized void release(CaptchaTraderRequestType type, String baseUrl, String username)
+	{
+		for (String key : keys(type, baseUrl, username)) {
+			Circuit circuit = _circuits.get(key);
+			if (circuit != null && circuit.probing) {
+				circuit.probing = false;
+			}
+		}
+	}
+
+	/**
+	 * Record an admitted call that got a reply, including replies with errors that say nothing about the service's health.
+	 */
+	synchronized void onSuccess(CaptchaTraderRequestType type, String baseUrl, String username)
+	{
+		for (String key : keys(type, baseUrl, username)) {
+			Circuit circuit = _circuits.get(key);
+			if (circuit != null && (circuit.state == State.CLOSED || circuit.probing)) {
+				_circuits.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Record an admitted call that failed.
+	 * @param errorType The kind of failure; {@link CaptchaTraderErrorType#REQUEST REQUEST} counts as success.
+	 */
+	synchronized void onFailure(CaptchaTraderRequestType type, String baseUrl, String username,
+								CaptchaTraderErrorType errorType, String status, String message)
+	{
+		String key;
+		long openMillis;
+		int threshold;
+		switch (errorType) {
+		case AUTH:
+			key = accountKey(username);
+			openMillis = _accountOpenMillis;
+			threshold = 1;
+			break;
+		case CREDITS:
+			key = creditsKey(username);
+			openMillis = _accountOpenMillis;
+			threshold = 1;
+			break;
+		case RETRYABLE:
+		case OVERLOAD:
+			key = endpointKey(type, baseUrl, username);
+			openMillis = _openMillis;
+			threshold = _failureThreshold;
+			break;
+		default:
+			onSuccess(type, baseUrl, username);
+			return;
+		}
+		// a failure of another kind still ends the probes of the circuits covering this call
+		for (String k : keys(type, baseUrl, username)) {
+			Circuit c = _circuits.get(k);
+			if (c != null && c.probing && !k.equals(key)) {
+				c.probing = false;
+				c.state = State.OPEN;
+				c.openUntil = System.currentTimeMillis() + c.openMillis;
+			}
+		}
+
+		Circuit circuit = _circuits.get(key);
+		if (circuit == null) {
+			circuit = new Circuit();
+			_circuits.put(key, circuit);
+		}
+		circuit.errorType = errorType;
+		circuit.status = status;
+		circuit.message = message;
+		circuit.failures++;
+		if (circuit.state == State.HALF_OPEN) {
+			circuit.openMillis = Math.min(_maxOpenMillis, Math.max(openMillis, circuit.openMillis * 2));
+		} else if (circuit.failures >= threshold) {
+			circuit.openMillis = openMillis;
+		} else {
+			return;
+		}
+		circuit.state = State.OPEN;
+		circuit.probing = false;
+		circuit.openUntil = System.currentTimeMillis() + circuit.openMillis;
+	}
+
+	private CaptchaTraderException open(Circuit circuit, String key)
+	{
+		return new CaptchaTraderException("Circuit open for " + key + " after: " + circuit.message,
+										  circuit.status, circuit.errorType);
+	}
+
+	/**
+	 * @return The circuits covering a call: the account's, the account's credits for submissions, and the endpoint's.
+	 */
+	private static String[] keys(CaptchaTraderRequestType type, String baseUrl, String username)
+	{
+		if (type == CaptchaTraderRequestType.SUBMIT) {
+			return new String[] {accountKey(username), creditsKey(username), endpointKey(type, baseUrl, username)};
+		}
+		return new String[] {accountKey(username), endpointKey(type, baseUrl, username)};
+	}
+
+	private static String accountKey(String username)
+	{
+		return "account " + username;
+	}
+
+	private static String creditsKey(String username)
+	{
+		return "credits of " + username;
+	}
+
+	private static String endpointKey(CaptchaTraderRequestType type, String baseUrl, String username)
+	{
+		return type.url(baseUrl) + " for " + username;
+	}
+}
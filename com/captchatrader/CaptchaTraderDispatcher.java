@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>CaptchaTraderDispatcher delivers {@link com.captchatrader.ResponseEvent ResponseEvent} callbacks on an
+ * executor of its own, so that a slow listener never holds up the thread that talked to the server.</p>
+ *
+ * <p>Callbacks to one listener are delivered one at a time, in order. Every callback is the outcome of
+ * a job, so none is ever dropped: a listener that falls behind has its callbacks queued, which holds at
+ * most one per job in flight, and if the executor rejects a callback it runs on the posting thread.
+ * Listeners that implement
+ * {@link com.captchatrader.ResponseListener ResponseListener} are also told about failed jobs, and about
+ * jobs with no response within {@link #setTimeout(long) the timeout}; a response arriving after the timeout
+ * is not delivered.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderDispatcher dispatcher = new CaptchaTraderDispatcher(Executors.newFixedThreadPool(4))
+ *        .setTimeout(90000);
+ *    ct.setDispatcher(dispatcher);
+ *    ct.submit(captcha, myResponseListener);
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderDispatcher
+{
+	private static CaptchaTraderDispatcher _default = null;
+	private static ScheduledExecutorService _timer = null;
+
+	private Executor _executor;
+	private long _timeoutMillis = 0;
+	private Map<ResponseEvent, Mailbox> _mailboxes = new IdentityHashMap<ResponseEvent, Mailbox>();
+	private int _pending = 0;
+
+	/**
+	 * The pending callbacks of one listener, drained by at most one thread at a time.
+	 */
+	private class Mailbox implements Runnable
+	{
+		ResponseEvent listener;
+		ArrayDeque<Runnable> pending = new ArrayDeque<Runnable>();
+		boolean scheduled = false;
+
+		Mailbox(ResponseEvent listener)
+		{
+			this.listener = listener;
+		}
+
+		public void run()
+		{
+			while (true) {
+				Runnable callback;
+				synchronized (CaptchaTraderDispatcher.this) {
+					callback = pending.poll();
+					if (callback != null) {
+						_pending--;
+					} else {
+						scheduled = false;
+						_mailboxes.remove(listener);
+						return;
+					}
+				}
+				try {
+					callback.run();
+				} catch (Throwable t) {
+					// a failing listener must not take down the dispatcher
+				}
+			}
+		}
+	}
+
+	/**
+	 * The outcome of one job, delivered to its listener exactly once.
+	 */
+	class Callback
+	{
+		private ResponseEvent _listener;
+		private AtomicBoolean _done = new AtomicBoolean();
+		private ScheduledFuture<?> _timeout = null;
+
+		Callback(ResponseEvent listener, long timeoutMillis)
+		{
+			_listener = listener;
+			if (timeoutMillis > 0 && listener instanceof ResponseListener) {
+				_timeout = timer().schedule(new Runnable() {
+					public void run()
+					{
+						if (_done.compareAndSet(false, true)) {
+							post(_listener, new Runnable() {
+								public void run()
+								{
+									((ResponseListener) _listener).timedOut();
+								}
+							});
+						}
+					}
+				}, timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Deliver the answer, unless the job already timed out.
+		 */
+		void succeeded(final String response)
+		{
+			if (finish()) {
+				post(_listener, new Runnable() {
+					public void run()
+					{
+						_listener.respond(response);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Deliver the failure to listeners that want it, unless the job already timed out.
+		 */
+		void failed(final Throwable error)
+		{
+			if (finish() && _listener instanceof ResponseListener) {
+				post(_listener, new Runnable() {
+					public void run()
+					{
+						((ResponseListener) _listener).failed(error);
+					}
+				});
+			}
+		}
+
+		private boolean finish()
+		{
+			if (!_done.compareAndSet(false, true)) {
+				return false;
+			}
+			if (_timeout != null) {
+				_timeout.cancel(false);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Create a dispatcher delivering callbacks on the given executor.
+	 * @param executor The executor to run callbacks on; it should not be shared with network I/O.
+	 */
+	public CaptchaTraderDispatcher(Executor executor)
+	{
+		_executor = executor;
+	}
+
+	/**
+	 * @return The dispatcher used by CaptchaTrader instances without one of their own, delivering on a pool of daemon threads.
+	 */
+	public static synchronized CaptchaTraderDispatcher getDefault()
+	{
+		if (_default == null) {
+			final AtomicInteger count = new AtomicInteger();
+			ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "captchatrader-callback-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			_default = new CaptchaTraderDispatcher(executor);
+		}
+		return _default;
+	}
+
+	private static synchronized ScheduledExecutorService timer()
+	{
+		if (_timer == null) {
+			_timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "captchatrader-callback-timeout");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return _timer;
+	}
+
+	/**
+	 * Set how long a job may take before its {@link com.captchatrader.ResponseListener ResponseListener} is told it timed out.
+	 * @param millis The timeout in milliseconds, or 0 for none.
+	 * @return This CaptchaTraderDispatcher instance.
+	 */
+	public synchronized CaptchaTraderDispatcher setTimeout(long millis)
+	{
+		_timeoutMillis = millis;
+		return this;
+	}
+
+	/**
+	 * @return The number of callbacks waiting for their listeners, which grows while listeners fall behind.
+	 */
+	public synchronized int getPending()
+	{
+		return _pending;
+	}
+
+	/**
+	 * Start tracking a job whose outcome goes to the given listener.
+	 */
+	Callback open(ResponseEvent listener)
+	{
+		long timeoutMillis;
+		synchronized (this) {
+			timeoutMillis = _timeoutMillis;
+		}
+		return new Callback(listener, timeoutMillis);
+	}
+
+	private void post(ResponseEvent listener, Runnable callback)
+	{
+		Mailbox mailbox;
+		synchronized (this) {
+			mailbox = _mailboxes.get(listener);
+			if (mailbox == null) {
+				mailbox = new Mailbox(listener);
+				_mailboxes.put(listener, mailbox);
+			}
+			mailbox.pending.add(callback);
+			_pending++;
+			if (mailbox.scheduled) {
+				return;
+			}
+			mailbox.scheduled = true;
+		}
+		try {
+			_executor.execute(mailbox);
+		} catch (RuntimeException re) {
+			// the executor is shut down or saturated; still scheduled, so deliveries stay in order
+			mailbox.run();
+		}
+	}
+}
@@ -0,0 +1,385 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>CaptchaTraderEndpoints is the set of API hosts a {@link com.captchatrader.CaptchaTrader CaptchaTrader}
+ * sends its calls to, such as mirrors, a local caching gateway or a
+ * {@link com.captchatrader.CaptchaTraderSimulator CaptchaTraderSimulator}.</p>
+ *
+ * <p>Each call goes to the healthy host with the lowest measured round trip time. Round trip times
+ * are a moving average of probes and of completed calls other than SUBMIT, whose time is dominated
+ * by solving. A host that fails several calls in a row is ejected for a while; once the ejection
+ * expires it is tried again, and with periodic probing enabled it returns as soon as a probe succeeds.
+ * Hosts that have not been measured yet are preferred, taking turns, so that every host gets measured;
+ * a client that only submits measures no host without probing, and so spreads its calls over all of them.
+ * If every host is ejected, the one due back first is used rather than failing outright.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderEndpoints endpoints = new CaptchaTraderEndpoints(
+ *        "http://api.captchatrader.com", "http://mirror.example.com:8080")
+ *        .setEjectionThreshold(3)
+ *        .startProbing(10000);
+ *    CaptchaTrader ct = new CaptchaTrader("APIKEY", "USERNAME", "PASSWORD/PASSKEY").setEndpoints(endpoints);
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderEndpoints
+{
+	/**
+	 * The base URL of the public CaptchaTrader API.
+	 */
+	public static final String DEFAULT_BASE_URL = "http://api.captchatrader.com";
+
+	/**
+	 * A host's state, read without locking by every call and updated under the host's own lock, so that
+	 * calls through a shared set do not queue behind each other.
+	 */
+	private static class Host
+	{
+		String baseUrl;
+		/**
+		 * Moving average of round trip times in milliseconds, negative until measured.
+		 */
+		volatile double rtt = -1;
+		volatile int failures = 0;
+		volatile long ejectedUntil = 0;
+		volatile boolean acceptsCompression = false;
+		Host(String baseUrl)
+		{
+			this.baseUrl = baseUrl;
+		}
+	}
+
+	private Host[] _hosts;
+	private volatile int _ejectionThreshold = 3;
+	private volatile long _ejectionMillis = 30000;
+	private volatile int _probeTimeoutMillis = 5000;
+	private volatile double _smoothing = 0.3;
+	/**
+	 * The turn of the next call among unmeasured hosts.
+	 */
+	private AtomicInteger _turn = new AtomicInteger();
+	private ScheduledExecutorService _prober = null;
+
+	/**
+	 * Create a set holding only the public CaptchaTrader API host.
+	 */
+	public CaptchaTraderEndpoints()
+	{
+		this(DEFAULT_BASE_URL);
+	}
+
+	/**
+	 * Create a set of API hosts. Ties in round trip time go to the host listed first.
+	 * @param baseUrls The scheme, host and optional port of each API host, e.g. http://api.captchatrader.com
+	 */
+	public CaptchaTraderEndpoints(String... baseUrls)
+	{
+		if (baseUrls.length == 0) {
+			throw new IllegalArgumentException("At least one API host is required");
+		}
+		_hosts = new Host[baseUrls.length];
+		for (int i = 0; i < baseUrls.length; i++) {
+			String baseUrl = baseUrls[i];
+			while (baseUrl.endsWith("/")) {
+				baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+			}
+			_hosts[i] = new Host(baseUrl);
+		}
+	}
+
+	/**
+	 * Set the number of consecutive failures after which a host is ejected.
+	 * @return This CaptchaTraderEndpoints instance.
+	 */
+	public synchronized CaptchaTraderEndpoints setEjectionThreshold(int failures)
+	{
+		_ejectionThreshold = failures;
+		return this;
+	}
+
+	/**
+	 * Set how long an ejected host is avoided before it is tried again.
+	 * @return This CaptchaTraderEndpoints instance.
+	 */
+	public synchronized CaptchaTraderEndpoints setEjectionTime(long millis)
+	{
+		_ejectionMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Set the connect and read timeout of probes.
+	 * @return This CaptchaTraderEndpoints instance.
+	 */
+	public synchronized CaptchaTraderEndpoints setProbeTimeout(int millis)
+	{
+		_probeTimeoutMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Set the weight of the newest sample in the round trip time moving average.
+	 * @param smoothing A weight between 0 (ignore new samples) and 1 (keep only the newest).
+	 * @return This CaptchaTraderEndpoints instance.
+	 */
+	public synchronized CaptchaTraderEndpoints setSmoothing(double smoothing)
+	{
+		_smoothing = smoothing;
+		return this;
+	}
+
+	/**
+	 * Probe every host now and then periodically on a background thread.
+	 * @param intervalMillis The time between probes of each host.
+	 * @return This CaptchaTraderEndpoints instance.
+	 */
+	public synchronized CaptchaTraderEndpoints startProbing(long intervalMillis)
+	{
+		stopProbing();
+		_prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "captchatrader-endpoint-probe");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_prober.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				probeAll();
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	/**
+	 * Stop periodic probing.
+	 */
+	public synchronized void stopProbing()
+	{
+		if (_prober != null) {
+			_prober.shutdownNow();
+			_prober = null;
+		}
+	}
+
+	/**
+	 * @return The base URLs of all hosts, in the order given.
+	 */
+	public String[] getBaseUrls()
+	{
+		String[] baseUrls = new String[_hosts.length];
+		for (int i = 0; i < _hosts.length; i++) {
+			baseUrls[i] = _hosts[i].baseUrl;
+		}
+		return baseUrls;
+	}
+
+	/**
+	 * Pick the host for the next call.
+	 * @return The base URL of a healthy unmeasured host, taking turns, or else of the healthy host with
+	 * the lowest round trip time.
+	 */
+	public String select()
+	{
+		long now = System.currentTimeMillis();
+		Host best = null;
+		Host soonest = null;
+		int unmeasured = 0;
+		for (Host host : _hosts) {
+			if (host.ejectedUntil > now) {
+				if (soonest == null || host.ejectedUntil < soonest.ejectedUntil) {
+					soonest = host;
+				}
+			} else {
+				if (host.rtt < 0) {
+					unmeasured++;
+				}
+				if (best == null || host.rtt < best.rtt) {
+					best = host;
+				}
+			}
+		}
+		if (unmeasured > 1) {
+			// ties at unmeasured would otherwise all go to the host listed first
+			int turn = Math.floorMod(_turn.getAndIncrement(), unmeasured);
+			for (Host host : _hosts) {
+				if (host.ejectedUntil <= now && host.rtt < 0 && turn-- == 0) {
+					return host.baseUrl;
+				}
+			}
+		}
+		return best != null ? best.baseUrl : soonest.baseUrl;
+	}
+
+	/**
+	 * Record a call that reached the given host.
+	 * @param baseUrl The host the call was sent to.
+	 * @param rttMillis The round trip time of the call, or a negative value if it does not reflect network latency.
+	 */
+	public void reportSuccess(String baseUrl, long rttMillis)
+	{
+		Host host = find(baseUrl);
+		if (host == null || (rttMillis < 0 && host.failures == 0 && host.ejectedUntil == 0)) {
+			return;
+		}
+		synchronized (host) {
+			host.failures = 0;
+			host.ejectedUntil = 0;
+			if (rttMillis >= 0) {
+				host.rtt = host.rtt < 0 ? rttMillis : host.rtt + _smoothing * (rttMillis - host.rtt);
+			}
+		}
+	}
+
+	/**
+	 * Record a call that could not reach the given host, ejecting it once the threshold is reached.
+	 * @param baseUrl The host the call was sent to.
+	 */
+	public void reportFailure(String baseUrl)
+	{
+		Host host = find(baseUrl);
+		if (host == null) {
+			return;
+		}
+		synchronized (host) {
+			host.failures++;
+			if (host.failures >= _ejectionThreshold) {
+				host.ejectedUntil = System.currentTimeMillis() + _ejectionMillis;
+			}
+		}
+	}
+
+	/**
+	 * Record whether the given host advertised that it accepts gzip compressed request content.
+	 */
+	public void reportAcceptsCompression(String baseUrl, boolean acceptsCompression)
+	{
+		Host host = find(baseUrl);
+		// written only on change, so calls do not keep invalidating each other's cached copy
+		if (host != null && host.acceptsCompression != acceptsCompression) {
+			host.acceptsCompression = acceptsCompression;
+		}
+	}
+
+	/**
+	 * @return Whether the given host has advertised that it accepts gzip compressed request content.
+	 */
+	public boolean acceptsCompression(String baseUrl)
+	{
+		Host host = find(baseUrl);
+		return host != null && host.acceptsCompression;
+	}
+
+	/**
+	 * @return The moving average round trip time of the given host in milliseconds, or a negative value if unmeasured.
+	 */
+	public double getRtt(String baseUrl)
+	{
+		Host host = find(baseUrl);
+		return host == null ? -1 : host.rtt;
+	}
+
+	/**
+	 * @return Whether the given host is currently eligible for calls.
+	 */
+	public boolean isHealthy(String baseUrl)
+	{
+		Host host = find(baseUrl);
+		return host != null && host.ejectedUntil <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Probe every host once and record the results.
+	 */
+	public void probeAll()
+	{
+		for (String baseUrl : getBaseUrls()) {
+			probe(baseUrl);
+		}
+	}
+
+	/**
+	 * Measure the round trip time of one host with an unauthenticated wait time query, and record the result.
+	 * @return The round trip time in milliseconds, or -1 if the host could not be reached.
+	 */
+	public long probe(String baseUrl)
+	{
+		int timeout = _probeTimeoutMillis;
+		long start = System.currentTimeMillis();
+		try {
+			URL url = new URL(CaptchaTraderRequestType.QUERY_WAIT_TIME.url(baseUrl) + ".xml");
+			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+			conn.setConnectTimeout(timeout);
+			conn.setReadTimeout(timeout);
+			int code = conn.getResponseCode();
+			InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+			if (in != null) {
+				// drain so the connection goes back to the keep-alive cache
+				byte[] buf = new byte[1024];
+				while (in.read(buf) >= 0) {
+				}
+				in.close();
+			}
+			if (code >= 500) {
+				reportFailure(baseUrl);
+				return -1;
+			}
+		} catch (IOException ioe) {
+			reportFailure(baseUrl);
+			return -1;
+		}
+		long rtt = System.currentTimeMillis() - start;
+		reportSuccess(baseUrl, rtt);
+		return rtt;
+	}
+
+	private Host find(String baseUrl)
+	{
+		for (Host host : _hosts) {
+			if (host.baseUrl.equals(baseUrl)) {
+				return host;
+			}
+		}
+		return null;
+	}
+}
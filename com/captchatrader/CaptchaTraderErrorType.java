@@ -0,0 +1,89 @@
+package com.captchatrader;
+
+/**
+ * The kinds of error an API call can fail with, as classified from the status and text of the error element.
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public enum CaptchaTraderErrorType
+{
+	/**
+	 * A transient server or network failure; the same call may succeed if retried.
+	 */
+	RETRYABLE,
+	/**
+	 * The API key, username or password was rejected; every call of the account will fail.
+	 */
+	AUTH,
+	/**
+	 * The account has run out of credits; submissions fail until it is topped up.
+	 */
+	CREDITS,
+	/**
+	 * The service is shedding load or a rate limit was hit; calls should back off.
+	 */
+	OVERLOAD,
+	/**
+	 * The call itself was invalid, or the error was raised locally; it says nothing about the service's health.
+	 */
+	REQUEST;
+
+	/**
+	 * Classify an error returned by the server. The status attribute is used when it is an HTTP-like
+	 * code; otherwise the words of the error text are matched against those of known messages.
+	 * @param status The status attribute of the error element, possibly null.
+	 * @param message The text of the error element, possibly null.
+	 * @return The kind of error.
+	 */
+	public static CaptchaTraderErrorType classify(String status, String message)
+	{
+		int code = -1;
+		try {
+			if (status != null) {
+				code = Integer.parseInt(status.trim());
+			}
+		} catch (NumberFormatException nfe) {}
+
+		if (code == 401 || code == 403) {
+			return AUTH;
+		} else if (code == 402) {
+			return CREDITS;
+		} else if (code == 429 || code == 503) {
+			return OVERLOAD;
+		} else if (code >= 500 && code < 600) {
+			return RETRYABLE;
+		} else if (code >= 400 && code < 500) {
+			return REQUEST;
+		}
+
+		// whole words only, so that e.g. SUCCESSFULLY does not read as FULL or GENERATE as RATE
+		String text = " " + ((status == null ? "" : status) + " " + (message == null ? "" : message))
+			.toUpperCase().replaceAll("[^A-Z0-9]+", " ").trim() + " ";
+		if (hasWords(text, "CREDIT", "CREDITS")) {
+			return CREDITS;
+		} else if (hasWords(text, "INVALID USER", "UNKNOWN USER", "USERNAME", "PASSWORD", "PASSKEY", "API KEY", "APIKEY",
+							"AUTH", "AUTHENTICATION", "UNAUTHORIZED")) {
+			return AUTH;
+		} else if (hasWords(text, "LIMIT", "LIMITED", "BUSY", "OVERLOAD", "OVERLOADED", "RATE", "FULL")) {
+			return OVERLOAD;
+		} else if (hasWords(text, "INTERNAL", "TIMEOUT", "TIMED OUT", "UNAVAILABLE", "TRY AGAIN")) {
+			return RETRYABLE;
+		}
+		return REQUEST;
+	}
+
+	/**
+	 * @param text Upper case words separated by single spaces, with a space at either end.
+	 * @return Whether the text contains any of the phrases as whole words.
+	 */
+	private static boolean hasWords(String text, String... phrases)
+	{
+		for (String phrase : phrases) {
+			if (text.indexOf(" " + phrase + " ") >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
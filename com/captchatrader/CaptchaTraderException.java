@@ -8,8 +8,50 @@ import java.lang.Exception;
  */
 public class CaptchaTraderException extends Exception
 {
+	private String _status = null;
+	private CaptchaTraderErrorType _errorType = CaptchaTraderErrorType.REQUEST;
+
 	public CaptchaTraderException(String message)
 	{
 		super(message);
 	}
+
+	/**
+	 * Create an exception for an error returned by the server.
+	 * @param message The text of the error element.
+	 * @param status The status attribute of the error element.
+	 * @since v2012.2
+	 */
+	public CaptchaTraderException(String message, String status)
+	{
+		this(message, status, CaptchaTraderErrorType.classify(status, message));
+	}
+
+	/**
+	 * @since v2012.2
+	 */
+	public CaptchaTraderException(String message, String status, CaptchaTraderErrorType errorType)
+	{
+		super(message);
+		_status = status;
+		_errorType = errorType;
+	}
+
+	/**
+	 * @return The status attribute sent by the server, or null if the error was raised locally.
+	 * @since v2012.2
+	 */
+	public String getStatus()
+	{
+		return _status;
+	}
+
+	/**
+	 * @return The kind of error, which tells whether retrying may help.
+	 * @since v2012.2
+	 */
+	public CaptchaTraderErrorType getErrorType()
+	{
+		return _errorType;
+	}
 }
@@ -0,0 +1,352 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Server side of the wire format spoken by {@link com.captchatrader.CaptchaTraderRequest CaptchaTraderRequest}
+ * and understood by {@link com.captchatrader.CaptchaTraderParser CaptchaTraderParser}.
+ * Decodes path and multipart parameters of an incoming call and writes the XML replies.
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+class CaptchaTraderExchange
+{
+	/**
+	 * Largest request body accepted, to keep a misbehaving caller from exhausting the heap.
+	 */
+	static final int MAX_BODY = 16 * 1024 * 1024;
+
+	private HttpExchange _exchange;
+	private CaptchaTraderRequestType _type = null;
+	private Map<String, String> _params = new HashMap<String, String>();
+	private Map<String, byte[]> _files = new HashMap<String, byte[]>();
+	private Map<String, String> _filenames = new HashMap<String, String>();
+	private boolean _compressReplies = false;
+
+	public CaptchaTraderExchange(HttpExchange exchange)
+		throws IOException
+	{
+		_exchange = exchange;
+
+		String path = exchange.getRequestURI().getPath();
+		if (path.endsWith(".xml")) {
+			path = path.substring(0, path.length() - 4);
+		}
+		String[] segments = path.split("/");
+		for (int i = 1; i < segments.length; i++) {
+			if (i == 1) {
+				_type = typeOf("/" + segments[i]);
+				continue;
+			}
+			int colon = segments[i].indexOf(':');
+			if (colon > 0) {
+				_params.put(segments[i].substring(0, colon), segments[i].substring(colon + 1));
+			}
+		}
+
+		if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			int b = contentType == null ? -1 : contentType.indexOf("boundary=");
+			if (b >= 0) {
+				parseMultipart(readBody(exchange.getRequestBody()), contentType.substring(b + 9).trim());
+			}
+		}
+	}
+
+	/**
+	 * @return The request type addressed by this call, or null for an unknown endpoint.
+	 */
+	public CaptchaTraderRequestType type()
+	{
+		return _type;
+	}
+
+	/**
+	 * @return The named text parameter, or null if it was not sent.
+	 */
+	public String getParameter(String name)
+	{
+		return _params.get(name);
+	}
+
+	/**
+	 * @return The content of the named file parameter, or null if it was not sent as a file.
+	 */
+	public byte[] getFile(String name)
+	{
+		return _files.get(name);
+	}
+
+	/**
+	 * @return The filename sent with the named file parameter, or null if it was not sent as a file.
+	 */
+	public String getFilename(String name)
+	{
+		return _filenames.get(name);
+	}
+
+	/**
+	 * Gzip the reply if the caller accepts it.
+	 */
+	public void setCompressReplies(boolean compressReplies)
+	{
+		_compressReplies = compressReplies;
+	}
+
+	public HttpExchange exchange()
+	{
+		return _exchange;
+	}
+
+	static CaptchaTraderRequestType typeOf(String path)
+	{
+		for (CaptchaTraderRequestType type : CaptchaTraderRequestType.values()) {
+			if (type.path().equals(path)) {
+				return type;
+			}
+		}
+		return null;
+	}
+
+	private static byte[] readBody(InputStream in)
+		throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int nread;
+		while ((nread = in.read(buf)) >= 0) {
+			out.write(buf, 0, nread);
+			if (out.size() > MAX_BODY) {
+				throw new IOException("Request body exceeds " + MAX_BODY + " bytes");
+			}
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private void parseMultipart(byte[] body, String boundary)
+		throws IOException
+	{
+		byte[] delimiter = ("--" + boundary).getBytes("ISO-8859-1");
+		int pos = indexOf(body, delimiter, 0);
+		while (pos >= 0) {
+			int start = pos + delimiter.length;
+			// the closing delimiter is followed by "--"
+			if (start + 1 < body.length && body[start] == '-' && body[start + 1] == '-') {
+				break;
+			}
+			int next = indexOf(body, delimiter, start);
+			if (next < 0) {
+				break;
+			}
+			parsePart(body, start, next);
+			pos = next;
+		}
+	}
+
+	private void parsePart(byte[] body, int start, int end)
+		throws IOException
+	{
+		int headerEnd = indexOf(body, new byte[] {'\r', '\n', '\r', '\n'}, start);
+		if (headerEnd < 0 || headerEnd > end) {
+			return;
+		}
+		String headers = new String(body, start, headerEnd - start, "ISO-8859-1");
+		String name = attribute(headers, "name");
+		if (name == null) {
+			return;
+		}
+		int from = headerEnd + 4;
+		int to = end;
+		// the part content is terminated by a newline ahead of the next delimiter
+		if (to - 2 >= from && body[to - 2] == '\r' && body[to - 1] == '\n') {
+			to -= 2;
+		}
+		byte[] content = new byte[to - from];
+		System.arraycopy(body, from, content, 0, content.length);
+		if (headers.toLowerCase().indexOf("content-encoding: gzip") >= 0) {
+			content = readBody(new GZIPInputStream(new ByteArrayInputStream(content)));
+		}
+
+		String filename = attribute(headers, "filename");
+		if (filename != null) {
+			_files.put(name, content);
+			_filenames.put(name, filename);
+		} else {
+			_params.put(name, new String(content, "UTF-8"));
+		}
+	}
+
+	private static String attribute(String headers, String attribute)
+	{
+		String key = "; " + attribute + "=\"";
+		int b = headers.indexOf(key);
+		if (b < 0) {
+			return null;
+		}
+		b += key.length();
+		int e = headers.indexOf('"', b);
+		return e < 0 ? null : headers.substring(b, e);
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from)
+	{
+		outer:
+		for (int i = from; i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	static String escape(String s)
+	{
+		if (s == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '&': sb.append("&amp;"); break;
+			case '<': sb.append("&lt;"); break;
+			case '>': sb.append("&gt;"); break;
+			case '"': sb.append("&quot;"); break;
+			default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reply with an error element, as parsed into {"-1", message, status}.
+	 */
+	public void sendError(String status, String message)
+		throws IOException
+	{
+		send("<error status=\"" + escape(status) + "\">" + escape(message) + "</error>");
+	}
+
+	/**
+	 * Reply to SUBMIT with a solved job.
+	 */
+	public void sendJobResponse(String ticket, String response)
+		throws IOException
+	{
+		send("<job id=\"" + escape(ticket) + "\"><response>" + escape(response) + "</response></job>");
+	}
+
+	/**
+	 * Reply to ENQUEUE with a job to be answered.
+	 */
+	public void sendJobChallenge(String ticket, String challenge)
+		throws IOException
+	{
+		send("<job id=\"" + escape(ticket) + "\"><challenge>" + escape(challenge) + "</challenge></job>");
+	}
+
+	/**
+	 * Reply to RESPOND, ANSWER and DEQUEUE.
+	 */
+	public void sendSuccess()
+		throws IOException
+	{
+		send("<success>1</success>");
+	}
+
+	/**
+	 * Reply to QUERY_CREDIT.
+	 */
+	public void sendCredits(int credits)
+		throws IOException
+	{
+		send("<user><credits>" + credits + "</credits></user>");
+	}
+
+	/**
+	 * Reply to QUERY_WAIT_TIME.
+	 */
+	public void sendQueue(int position, int length, int eta)
+		throws IOException
+	{
+		send("<queue><position>" + position + "</position><length>" + length
+			 + "</length><eta>" + eta + "</eta></queue>");
+	}
+
+	/**
+	 * Reply with a body that is not XML, as a failing proxy in front of the API might.
+	 */
+	public void sendMalformed()
+		throws IOException
+	{
+		send("502 Bad Gateway".getBytes("UTF-8"), "text/plain; charset=UTF-8");
+	}
+
+	private void send(String xml)
+		throws IOException
+	{
+		send(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes("UTF-8"), "text/xml; charset=UTF-8");
+	}
+
+	private void send(byte[] body, String contentType)
+		throws IOException
+	{
+		_exchange.getResponseHeaders().set("Content-Type", contentType);
+		_exchange.getResponseHeaders().set("Accept-Encoding", "gzip");
+		String acceptEncoding = _exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (_compressReplies && acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			GZIPOutputStream gz = new GZIPOutputStream(buf);
+			gz.write(body);
+			gz.close();
+			body = buf.toByteArray();
+			_exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		_exchange.sendResponseHeaders(200, body.length);
+		OutputStream os = _exchange.getResponseBody();
+		try {
+			os.write(body);
+		} finally {
+			os.close();
+		}
+	}
+}
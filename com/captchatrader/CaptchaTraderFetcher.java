@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>CaptchaTraderFetcher downloads CAPTCHA images on the client so that
+ * {@link com.captchatrader.CaptchaTrader#submit(URL) submit(URL)} uploads the image itself instead of
+ * asking the service to fetch the URL. This keeps session-bound CAPTCHAs working, since the request
+ * carries the client's cookies, and saves the service a fetch per job.</p>
+ *
+ * <p>Downloads run on the fetcher's own pool of threads, which also bounds the number of connections
+ * it holds open to image hosts. {@link #prefetch(URL...) prefetch()} starts downloading CAPTCHAs that
+ * will be submitted later, so that fetching overlaps the solving of earlier ones; a later submit of the
+ * same URL picks up the prefetched image. Prefetched images that are never submitted are dropped
+ * oldest first once {@link #setMaxPrefetched(int) the limit} is reached.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderFetcher fetcher = new CaptchaTraderFetcher(8)
+ *        .setTimeouts(5000, 10000)
+ *        .setRequestProperty("Cookie", sessionCookie);
+ *    ct.setFetcher(fetcher);
+ *    ct.prefetch(urls.get(1), urls.get(2));
+ *    String answer = ct.submit(urls.get(0));
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderFetcher
+{
+	private ExecutorService _pool;
+	private int _connectTimeout = 10000;
+	private int _readTimeout = 20000;
+	private int _maxBytes = 2 * 1024 * 1024;
+	private int _maxPrefetched = 256;
+	private Map<String, String> _requestProperties = new LinkedHashMap<String, String>();
+	private LinkedHashMap<String, Future<byte[]>> _prefetched = new LinkedHashMap<String, Future<byte[]>>();
+
+	/**
+	 * Create a fetcher downloading with up to the given number of concurrent connections.
+	 * @param threads The number of download threads.
+	 */
+	public CaptchaTraderFetcher(int threads)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "captchatrader-fetch-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		pool.allowCoreThreadTimeOut(true);
+		_pool = pool;
+	}
+
+	/**
+	 * Set the connect and read timeouts of downloads.
+	 * @return This CaptchaTraderFetcher instance.
+	 */
+	public synchronized CaptchaTraderFetcher setTimeouts(int connectMillis, int readMillis)
+	{
+		_connectTimeout = connectMillis;
+		_readTimeout = readMillis;
+		return this;
+	}
+
+	/**
+	 * Set the largest image accepted. Larger downloads fail.
+	 * @return This CaptchaTraderFetcher instance.
+	 */
+	public synchronized CaptchaTraderFetcher setMaxBytes(int maxBytes)
+	{
+		_maxBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Set the number of prefetched images kept waiting for their submit.
+	 * @return This CaptchaTraderFetcher instance.
+	 */
+	public synchronized CaptchaTraderFetcher setMaxPrefetched(int maxPrefetched)
+	{
+		_maxPrefetched = maxPrefetched;
+		return this;
+	}
+
+	/**
+	 * Send a header with every download, such as the Cookie or Referer a session-bound CAPTCHA needs.
+	 * @return This CaptchaTraderFetcher instance.
+	 */
+	public synchronized CaptchaTraderFetcher setRequestProperty(String name, String value)
+	{
+		if (value == null) {
+			_requestProperties.remove(name);
+		} else {
+			_requestProperties.put(name, value);
+		}
+		return this;
+	}
+
+	/**
+	 * Start downloading CAPTCHAs that will be submitted later.
+	 * @param urls The URLs of the CAPTCHA images.
+	 */
+	public void prefetch(URL... urls)
+	{
+		for (URL url : urls) {
+			Future<byte[]> evicted = null;
+			String key = url.toString();
+			synchronized (this) {
+				if (_prefetched.containsKey(key)) {
+					continue;
+				}
+				_prefetched.put(key, fetch(url));
+				if (_prefetched.size() > _maxPrefetched) {
+					Iterator<Future<byte[]>> oldest = _prefetched.values().iterator();
+					evicted = oldest.next();
+					oldest.remove();
+				}
+			}
+			if (evicted != null) {
+				evicted.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Start downloading a CAPTCHA image on the fetcher's pool.
+	 * @param url The URL of the CAPTCHA image.
+	 * @return The pending image content.
+	 */
+	public Future<byte[]> fetch(final URL url)
+	{
+		return _pool.submit(new Callable<byte[]>() {
+			public byte[] call()
+				throws IOException
+			{
+				return download(url);
+			}
+		});
+	}
+
+	/**
+	 * Download several CAPTCHA images in parallel.
+	 * @param urls The URLs of the CAPTCHA images.
+	 * @return The pending image contents, in the order of the URLs.
+	 */
+	public List<Future<byte[]>> fetchAll(List<URL> urls)
+	{
+		List<Future<byte[]>> images = new ArrayList<Future<byte[]>>(urls.size());
+		for (URL url : urls) {
+			images.add(fetch(url));
+		}
+		return images;
+	}
+
+	/**
+	 * Get the image at a URL, from the prefetched images if it was prefetched, otherwise by downloading it now
+	 * on the fetcher's pool, so the connection limit holds for every download.
+	 * @param url The URL of the CAPTCHA image.
+	 * @return The image content.
+	 * @throws IOException If the download failed.
+	 */
+	public byte[] get(URL url)
+		throws IOException
+	{
+		Future<byte[]> image;
+		synchronized (this) {
+			image = _prefetched.remove(url.toString());
+		}
+		try {
+			if (image == null) {
+				image = fetch(url);
+			}
+			return image.get();
+		} catch (InterruptedException ie) {
+			image.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while fetching " + url);
+		} catch (RejectedExecutionException ree) {
+			throw new IOException("Fetcher is shut down, cannot fetch " + url);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException) {
+				throw (IOException) ee.getCause();
+			}
+			throw new IOException("Failed to fetch " + url + ": " + ee.getCause());
+		}
+	}
+
+	/**
+	 * Name a downloaded image after its URL, with an extension matching its content
+	 * so the right content type is sent along.
+	 * @return A filename for the upload.
+	 */
+	public static String filename(URL url, byte[] image)
+	{
+		String name = url.getPath();
+		name = name.substring(name.lastIndexOf('/') + 1);
+		if (name.length() == 0) {
+			name = "captcha";
+		}
+		if (URLConnection.guessContentTypeFromName(name) != null) {
+			return name;
+		}
+		String type = null;
+		try {
+			type = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(image));
+		} catch (IOException ioe) {
+		}
+		if ("image/png".equals(type)) {
+			return name + ".png";
+		} else if ("image/gif".equals(type)) {
+			return name + ".gif";
+		} else if ("image/jpeg".equals(type)) {
+			return name + ".jpg";
+		}
+		return name;
+	}
+
+	/**
+	 * Stop the download threads, abandoning downloads in progress.
+	 */
+	public void shutdown()
+	{
+		_pool.shutdownNow();
+		synchronized (this) {
+			_prefetched.clear();
+		}
+	}
+
+	private byte[] download(URL url)
+		throws IOException
+	{
+		int connectTimeout, readTimeout, maxBytes;
+		Map<String, String> properties;
+		synchronized (this) {
+			connectTimeout = _connectTimeout;
+			readTimeout = _readTimeout;
+			maxBytes = _maxBytes;
+			properties = new LinkedHashMap<String, String>(_requestProperties);
+		}
+		URLConnection conn = url.openConnection();
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			conn.setRequestProperty(property.getKey(), property.getValue());
+		}
+		if (conn instanceof HttpURLConnection) {
+			int code = ((HttpURLConnection) conn).getResponseCode();
+			if (code >= 400) {
+				((HttpURLConnection) conn).disconnect();
+				throw new IOException("HTTP " + code + " fetching " + url);
+			}
+		}
+		int length = conn.getContentLength();
+		if (length > maxBytes) {
+			throw new IOException("CAPTCHA at " + url + " exceeds " + maxBytes + " bytes");
+		}
+		InputStream in = conn.getInputStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 8192);
+			byte[] buf = new byte[8192];
+			int nread;
+			while ((nread = in.read(buf)) >= 0) {
+				out.write(buf, 0, nread);
+				if (out.size() > maxBytes) {
+					throw new IOException("CAPTCHA at " + url + " exceeds " + maxBytes + " bytes");
+				}
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
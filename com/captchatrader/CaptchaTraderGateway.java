@@ -0,0 +1,650 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>CaptchaTraderGateway is a local server that lets many processes on a host share one set of
+ * {@link com.captchatrader.CaptchaTrader CaptchaTrader} accounts, connections and caches.</p>
+ *
+ * <p>The gateway speaks the same API as http://api.captchatrader.com, so its clients are plain
+ * CaptchaTrader instances pointed at it, see {@link #client(String, String) client()}; they need no credentials
+ * of their own, only the gateway's {@link #setToken(String) token}, which they send in place of a password.
+ * A gateway without a token serves the loopback interface only, as anyone who can reach it spends the
+ * accounts' credits. Submissions are spread over the gateway's accounts, least loaded first, and limited to
+ * {@link #setMaxConcurrentJobs(int) a number in flight} across all of them. Identical CAPTCHA images
+ * submitted while one is being solved wait for that solve, and solved images are answered from a cache until
+ * {@link #setCacheTime(long) they expire} or are responded to as incorrect. CAPTCHAs submitted by URL are
+ * always passed through, as the same URL may serve a new image on every fetch. Credit and wait time queries
+ * are answered from the last poll of the service, taken at most once per {@link #setPollInterval(long) interval}
+ * however many clients ask.</p>
+ *
+ * <p>Tickets handed to clients are the gateway's own, numbered from the time the gateway was started so
+ * that they do not repeat across restarts. Responding to one is forwarded to the account that
+ * solved the job, once, however many clients got the same answer.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    // in the gateway process
+ *    CaptchaTraderGateway gateway = new CaptchaTraderGateway(
+ *            new CaptchaTrader("APIKEY", "USERNAME1", "PASSWORD1"),
+ *            new CaptchaTrader("APIKEY", "USERNAME2", "PASSWORD2"))
+ *        .setMaxConcurrentJobs(200)
+ *        .setToken("SECRET");
+ *    gateway.start(new InetSocketAddress(8750));
+ *
+ *    // in each client process
+ *    CaptchaTrader ct = CaptchaTraderGateway.client("http://gateway.example:8750", "SECRET");
+ *    String answer = ct.submit(file);
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderGateway
+{
+	private CaptchaTrader[] _accounts;
+	private int[] _load;
+	private volatile Semaphore _permits = null;
+	private volatile byte[] _token = null;
+	private long _cacheTime = 600000;
+	private int _maxCached = 10000;
+	private int _maxTickets = 100000;
+	private long _pollInterval = 5000;
+	private boolean _compressReplies = false;
+
+	private Map<String, Solved> _cache = new LinkedHashMap<String, Solved>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Solved> eldest)
+		{
+			return size() > _maxCached;
+		}
+	};
+	private Map<String, FutureTask<Solved>> _inFlight = new HashMap<String, FutureTask<Solved>>();
+	private Map<String, Solved> _tickets = new LinkedHashMap<String, Solved>() {
+		protected boolean removeEldestEntry(Map.Entry<String, Solved> eldest)
+		{
+			return size() > _maxTickets;
+		}
+	};
+	/**
+	 * The last ticket handed out. Tickets start from the creation time in milliseconds times 1000,
+	 * so a restarted gateway does not hand out the tickets of the previous run.
+	 */
+	private AtomicLong _ticket = new AtomicLong(System.currentTimeMillis() * 1000);
+
+	private Object _pollLock = new Object();
+	private int _credits;
+	private long _creditsTime = 0;
+	private int[] _queue;
+	private long _queueTime = 0;
+
+	private AtomicLong _submitted = new AtomicLong();
+	private AtomicLong _cacheHits = new AtomicLong();
+	private AtomicLong _coalesced = new AtomicLong();
+
+	private HttpServer _server = null;
+	private ExecutorService _workers;
+
+	/**
+	 * A CAPTCHA solved by one of the accounts.
+	 */
+	private static class Solved
+	{
+		String ticket;
+		String key;
+		CaptchaTrader account;
+		String accountTicket;
+		String answer;
+		long time;
+		boolean responded = false;
+	}
+
+	/**
+	 * Create a gateway submitting through the given accounts.
+	 * @param accounts CaptchaTrader instances with the credentials, endpoints and other settings to share.
+	 */
+	public CaptchaTraderGateway(CaptchaTrader... accounts)
+	{
+		if (accounts.length == 0) {
+			throw new IllegalArgumentException("A gateway needs at least one account");
+		}
+		_accounts = accounts.clone();
+		_load = new int[accounts.length];
+	}
+
+	/**
+	 * Create a client of a gateway.
+	 * @param baseUrl The base URL of the gateway, as returned by {@link #getBaseUrl()}.
+	 * @return A CaptchaTrader instance calling the gateway.
+	 */
+	public static CaptchaTrader client(String baseUrl)
+	{
+		return client(baseUrl, "");
+	}
+
+	/**
+	 * Create a client of a gateway that requires a token.
+	 * @param baseUrl The base URL of the gateway, as returned by {@link #getBaseUrl()}.
+	 * @param token The token set with {@link #setToken(String)}.
+	 * @return A CaptchaTrader instance calling the gateway.
+	 */
+	public static CaptchaTrader client(String baseUrl, String token)
+	{
+		// the gateway holds the credentials, the password field carries the token on every call
+		return new CaptchaTrader("", "gateway", token).setBaseUrl(baseUrl);
+	}
+
+	/**
+	 * Limit the number of submissions in flight at once across all accounts. Further submissions wait.
+	 * @param maxConcurrentJobs The most submissions in flight, or 0 for no limit.
+	 * @return This CaptchaTraderGateway instance.
+	 */
+	public CaptchaTraderGateway setMaxConcurrentJobs(int maxConcurrentJobs)
+	{
+		_permits = maxConcurrentJobs > 0 ? new Semaphore(maxConcurrentJobs) : null;
+		return this;
+	}
+
+	/**
+	 * Require clients to send the given token, see {@link #client(String, String)}. Calls without it are
+	 * refused as an invalid user. A gateway needs a token to be started on an address other than loopback.
+	 * @param token The shared secret, of letters and digits, or null to accept any client.
+	 * @return This CaptchaTraderGateway instance.
+	 */
+	public CaptchaTraderGateway setToken(String token)
+	{
+		_token = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+		return this;
+	}
+
+	/**
+	 * Set how long a solved CAPTCHA is answered from the cache.
+	 * @param millis The time in milliseconds, or 0 to cache nothing.
+	 * @return This CaptchaTraderGateway instance.
+	 */
+	public synchronized CaptchaTraderGateway setCacheTime(long millis)
+	{
+		_cacheTime = millis;
+		return this;
+	}
+
+	/**
+	 * Set the number of solved CAPTCHAs cached, least recently used ones being dropped first.
+	 * @return This CaptchaTraderGateway instance.
+	 */
+	public synchronized CaptchaTraderGateway setMaxCached(int maxCached)
+	{
+		_maxCached = maxCached;
+		return this;
+	}
+
+	/**
+	 * Set how often credits and wait time are polled from the service at most.
+	 * @param millis The interval in milliseconds.
+	 * @return This CaptchaTraderGateway instance.
+	 */
+	public CaptchaTraderGateway setPollInterval(long millis)
+	{
+		_pollInterval = millis;
+		return this;
+	}
+
+	/**
+	 * Gzip replies to clients that accept it.
+	 * @return This CaptchaTraderGateway instance.
+	 */
+	public CaptchaTraderGateway setCompressReplies(boolean compressReplies)
+	{
+		_compressReplies = compressReplies;
+		return this;
+	}
+
+	/**
+	 * Start serving on an ephemeral port of the loopback interface.
+	 * @return This CaptchaTraderGateway instance.
+	 * @throws IOException If the server socket cannot be opened.
+	 */
+	public CaptchaTraderGateway start()
+		throws IOException
+	{
+		return start(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+	}
+
+	/**
+	 * Start serving on the given address.
+	 * @return This CaptchaTraderGateway instance.
+	 * @throws IOException If the server socket cannot be opened.
+	 * @throws IllegalArgumentException If the address is not a loopback address and no token is set.
+	 */
+	public CaptchaTraderGateway start(InetSocketAddress address)
+		throws IOException
+	{
+		InetAddress host = address.getAddress();
+		if (_token == null && (host == null || !host.isLoopbackAddress())) {
+			throw new IllegalArgumentException("A gateway on " + address + " needs a token, see setToken()");
+		}
+		// submissions hold their thread until solved, so the pool grows with them
+		_workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger _count = new AtomicInteger();
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "captchatrader-gateway-" + _count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_server = HttpServer.create(address, 1024);
+		_server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange)
+				throws IOException
+			{
+				dispatch(exchange);
+			}
+		});
+		_server.setExecutor(_workers);
+		_server.start();
+		return this;
+	}
+
+	/**
+	 * Stop serving. Submissions in flight are abandoned.
+	 */
+	public void stop()
+	{
+		if (_server != null) {
+			_server.stop(0);
+			_workers.shutdownNow();
+			_server = null;
+		}
+	}
+
+	/**
+	 * @return The address being served.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return _server == null ? null : _server.getAddress();
+	}
+
+	/**
+	 * @return The base URL to give to {@link #client(String) client()}.
+	 */
+	public String getBaseUrl()
+	{
+		InetSocketAddress address = getAddress();
+		return address == null ? null : "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+	}
+
+	/**
+	 * @return The number of CAPTCHAs submitted to the service.
+	 */
+	public long getSubmitted()
+	{
+		return _submitted.get();
+	}
+
+	/**
+	 * @return The number of submissions answered from the cache.
+	 */
+	public long getCacheHits()
+	{
+		return _cacheHits.get();
+	}
+
+	/**
+	 * @return The number of submissions that waited for an identical CAPTCHA being solved.
+	 */
+	public long getCoalesced()
+	{
+		return _coalesced.get();
+	}
+
+	/**
+	 * @return The number of submissions in flight to the service.
+	 */
+	public synchronized int getInFlight()
+	{
+		int inFlight = 0;
+		for (int load : _load) {
+			inFlight += load;
+		}
+		return inFlight;
+	}
+
+	private void dispatch(HttpExchange exchange)
+		throws IOException
+	{
+		CaptchaTraderExchange ex;
+		try {
+			ex = new CaptchaTraderExchange(exchange);
+		} catch (IOException ioe) {
+			exchange.sendResponseHeaders(413, -1);
+			exchange.close();
+			return;
+		}
+		ex.setCompressReplies(_compressReplies);
+		CaptchaTraderRequestType type = ex.type();
+		if (type == null) {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+		if (!authorized(ex.getParameter("password"))) {
+			ex.sendError("401", "INVALID USER");
+			return;
+		}
+		try {
+			switch (type) {
+			case SUBMIT:
+				submit(ex);
+				break;
+			case RESPOND:
+				respond(ex);
+				break;
+			case QUERY_CREDIT:
+				ex.sendCredits(credits());
+				break;
+			case QUERY_WAIT_TIME:
+				int[] queue = queue();
+				ex.sendQueue(queue[0], queue[1], queue[2]);
+				break;
+			default:
+				ex.sendError("501", "NOT SUPPORTED BY GATEWAY");
+			}
+		} catch (CaptchaTraderException cte) {
+			ex.sendError(status(cte), cte.getMessage());
+		} catch (IOException ioe) {
+			ex.sendError("502", ioe.toString());
+		} catch (Exception e) {
+			ex.sendError("500", e.toString());
+		}
+	}
+
+	private void submit(CaptchaTraderExchange ex)
+		throws Exception
+	{
+		final byte[] image = ex.getFile("value");
+		final String filename = ex.getFilename("value");
+		final String url = ex.getParameter("value");
+		if (image == null && url == null) {
+			ex.sendError("400", "INVALID PARAMETERS");
+			return;
+		}
+		if (image == null) {
+			Solved solved = solve(null, filename, null, url);
+			ex.sendJobResponse(solved.ticket, solved.answer);
+			return;
+		}
+		final String key = digest(image);
+
+		Solved cached = null;
+		FutureTask<Solved> solve = null;
+		boolean owner = false;
+		synchronized (this) {
+			cached = _cache.get(key);
+			if (cached != null && System.currentTimeMillis() - cached.time >= _cacheTime) {
+				_cache.remove(key);
+				cached = null;
+			}
+			solve = cached != null ? null : _inFlight.get(key);
+			if (cached != null) {
+				_cacheHits.incrementAndGet();
+			} else if (solve == null) {
+				solve = new FutureTask<Solved>(new Callable<Solved>() {
+					public Solved call()
+						throws Exception
+					{
+						return solve(key, filename, image, url);
+					}
+				});
+				_inFlight.put(key, solve);
+				owner = true;
+			} else {
+				_coalesced.incrementAndGet();
+			}
+		}
+		if (cached != null) {
+			ex.sendJobResponse(cached.ticket, cached.answer);
+			return;
+		}
+		if (owner) {
+			try {
+				solve.run();
+			} finally {
+				synchronized (this) {
+					_inFlight.remove(key);
+				}
+			}
+		}
+		Solved solved;
+		try {
+			solved = solve.get();
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof Exception) {
+				throw (Exception) ee.getCause();
+			}
+			throw ee;
+		}
+		ex.sendJobResponse(solved.ticket, solved.answer);
+	}
+
+	/**
+	 * Submit a CAPTCHA through the least loaded account.
+	 * @param key The digest the answer is cached under, or null not to cache it.
+	 */
+	private Solved solve(String key, String filename, byte[] image, String url)
+		throws Exception
+	{
+		Semaphore permits = _permits;
+		if (permits != null) {
+			permits.acquire();
+		}
+		int account = lease();
+		String[] response;
+		try {
+			_submitted.incrementAndGet();
+			if (image != null) {
+				response = _accounts[account].submitImage(filename == null ? "captcha" : filename, image);
+			} else {
+				response = _accounts[account].submitCaptcha(new URL(url));
+			}
+		} finally {
+			release(account);
+			if (permits != null) {
+				permits.release();
+			}
+		}
+		Solved solved = new Solved();
+		solved.ticket = String.valueOf(_ticket.incrementAndGet());
+		solved.key = key;
+		solved.account = _accounts[account];
+		solved.accountTicket = response[0];
+		solved.answer = response[1];
+		solved.time = System.currentTimeMillis();
+		synchronized (this) {
+			if (key != null && _cacheTime > 0) {
+				_cache.put(key, solved);
+			}
+			_tickets.put(solved.ticket, solved);
+		}
+		return solved;
+	}
+
+	private synchronized int lease()
+	{
+		int least = 0;
+		for (int i = 1; i < _load.length; i++) {
+			if (_load[i] < _load[least]) {
+				least = i;
+			}
+		}
+		_load[least]++;
+		return least;
+	}
+
+	private synchronized void release(int account)
+	{
+		_load[account]--;
+	}
+
+	private void respond(CaptchaTraderExchange ex)
+		throws Exception
+	{
+		String ticket = ex.getParameter("ticket");
+		String isCorrect = ex.getParameter("is_correct");
+		boolean correct = "true".equalsIgnoreCase(isCorrect) || "1".equals(isCorrect);
+		Solved solved;
+		boolean forward = false;
+		synchronized (this) {
+			solved = ticket == null ? null : _tickets.get(ticket);
+			if (solved != null) {
+				if (!correct && solved.key != null && _cache.get(solved.key) == solved) {
+					_cache.remove(solved.key);
+				}
+				// another client may have got the same answer and responded already
+				forward = !solved.responded;
+				solved.responded = true;
+			}
+		}
+		if (solved == null) {
+			ex.sendError("400", "INVALID TICKET");
+			return;
+		}
+		if (!forward) {
+			ex.sendSuccess();
+			return;
+		}
+		try {
+			solved.account.respond(solved.accountTicket, correct);
+		} catch (IOException ioe) {
+			synchronized (this) {
+				solved.responded = false;
+			}
+			throw ioe;
+		}
+		ex.sendSuccess();
+	}
+
+	/**
+	 * @return The credits of all accounts, polled at most once per interval.
+	 */
+	private int credits()
+		throws Exception
+	{
+		synchronized (_pollLock) {
+			if (System.currentTimeMillis() - _creditsTime >= _pollInterval) {
+				long credits = 0;
+				for (CaptchaTrader account : _accounts) {
+					credits += account.getCredits();
+				}
+				_credits = (int) Math.min(credits, Integer.MAX_VALUE);
+				_creditsTime = System.currentTimeMillis();
+			}
+			return _credits;
+		}
+	}
+
+	/**
+	 * @return The solver queue seen by the first account, polled at most once per interval.
+	 */
+	private int[] queue()
+		throws Exception
+	{
+		synchronized (_pollLock) {
+			if (System.currentTimeMillis() - _queueTime >= _pollInterval) {
+				_queue = _accounts[0].getQueue();
+				_queueTime = System.currentTimeMillis();
+			}
+			return _queue;
+		}
+	}
+
+	private boolean authorized(String password)
+	{
+		byte[] token = _token;
+		if (token == null) {
+			return true;
+		}
+		// constant time, so the token cannot be guessed a byte at a time
+		return password != null && MessageDigest.isEqual(token, password.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String status(CaptchaTraderException cte)
+	{
+		if (cte.getStatus() != null) {
+			return cte.getStatus();
+		}
+		switch (cte.getErrorType()) {
+		case AUTH:
+			return "401";
+		case CREDITS:
+			return "402";
+		case OVERLOAD:
+			return "503";
+		case RETRYABLE:
+			return "502";
+		default:
+			return "400";
+		}
+	}
+
+	private static String digest(byte[] image)
+	{
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(image);
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		}
+	}
+}
@@ -0,0 +1,538 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.imageio.ImageIO;
+
+/**
+ * <p>CaptchaTraderImageIndex remembers the answers to solved CAPTCHA images by a perceptual hash, so
+ * that a CAPTCHA served again, even re-encoded or with a little noise added, is answered without paying
+ * for another solve.</p>
+ *
+ * <p>Each image is reduced to a 64 bit difference hash (dHash): it is averaged down to a 9 by 8 grid
+ * of gray levels and each bit tells whether a cell is clearly darker than its right neighbour, by more than
+ * a twentieth of the image's contrast, so that cells of a flat background do not flip with noise. Images whose
+ * hashes differ in at most {@link #setThreshold(int) a few bits} are candidates for the same CAPTCHA.</p>
+ *
+ * <p>A hash that coarse can not tell text apart reliably: different CAPTCHAs in the same font and layout
+ * hash within a few bits of each other often enough to hand out wrong answers. So a candidate is only
+ * taken once it is confirmed on a 48 by 16 thumbnail of gray levels, stretched to full contrast, that is
+ * kept with each entry: no pixel may differ by more than {@link #setTolerance(int) the tolerance}.
+ * Averaging over the area of each pixel keeps re-encoding and light noise well within it, while a single
+ * different character, even O for Q, moves some pixels by most of the gray scale. {@link #setConfirm(boolean) Confirmation} can be turned
+ * off, at the risk of wrong answers.</p>
+ *
+ * <p>Hashes are kept by multi-index hashing: the 64 bits are cut into one more chunk than the threshold,
+ * and each chunk has a table of the entries by the value of that chunk. Two hashes within the threshold
+ * must agree exactly on at least one chunk, so a lookup only compares the entries found in one bucket
+ * per chunk, and stays fast with millions of entries.</p>
+ *
+ * <p>A lookup only answers when it is confident: the nearest match is within the threshold and no other
+ * match within the threshold has a different answer. An answer reused from the index gets a ticket of
+ * its own; responding to it is never sent to the server, which did not solve it, but responding to it or
+ * to the original job as incorrect removes the entry, so a wrong answer is not handed out again. Once
+ * {@link #setMaxEntries(int) the limit} is reached the oldest entries are dropped.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderImageIndex index = new CaptchaTraderImageIndex();
+ *    ct.setImageIndex(index);
+ *    String answer = ct.submit(captcha);   // answered from the index if seen before
+ *    ct.respond(isCorrect);                // a wrong answer is pruned from the index
+ *    System.out.println(index.getHits() + " solves saved");
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderImageIndex
+{
+	/**
+	 * The prefix of the tickets of answers reused from the index.
+	 */
+	static final String REUSED = "reused-";
+	private static final int THUMBNAIL_WIDTH = 48;
+	private static final int THUMBNAIL_HEIGHT = 16;
+
+	private int _maxEntries = 100000;
+	private volatile boolean _confirm = true;
+	private volatile int _tolerance = 48;
+
+	private ReadWriteLock _lock = new ReentrantReadWriteLock();
+	private int _threshold;
+	/**
+	 * For each chunk of the hash, the entries by the value of that chunk
+	 */
+	private List<Map<Long, List<Entry>>> _tables;
+	private ArrayDeque<Entry> _order = new ArrayDeque<Entry>();
+	private Map<String, Entry> _tickets = new HashMap<String, Entry>();
+	/**
+	 * The entries whose answers were reused, by the ticket handed out with them, most recent last.
+	 */
+	private Map<String, Entry> _reused = new LinkedHashMap<String, Entry>() {
+		protected boolean removeEldestEntry(Map.Entry<String, CaptchaTraderImageIndex.Entry> eldest)
+		{
+			return size() > _maxEntries;
+		}
+	};
+	private long _nextReused = 1;
+	private int _live = 0;
+
+	private AtomicLong _hits = new AtomicLong();
+	private AtomicLong _misses = new AtomicLong();
+	private AtomicLong _pruned = new AtomicLong();
+
+	private static class Entry
+	{
+		long hash;
+		byte[] thumbnail;
+		String ticket;
+		String answer;
+		boolean removed = false;
+	}
+
+	/**
+	 * The hash and thumbnail of a CAPTCHA image.
+	 */
+	static class Print
+	{
+		long hash;
+		byte[] thumbnail;
+	}
+
+	/**
+	 * Create an index with a threshold of 4 bits and confirmation on.
+	 */
+	public CaptchaTraderImageIndex()
+	{
+		setThreshold(4);
+	}
+
+	/**
+	 * Set whether a candidate must be confirmed on its thumbnail before its answer is reused. On by
+	 * default. Off, images within the threshold are taken to be the same CAPTCHA, which can hand out the
+	 * answer of a different CAPTCHA of the same font and layout.
+	 * @param confirm Whether to confirm candidates.
+	 * @return This CaptchaTraderImageIndex instance.
+	 */
+	public CaptchaTraderImageIndex setConfirm(boolean confirm)
+	{
+		_confirm = confirm;
+		return this;
+	}
+
+	/**
+	 * Set how far apart, in gray levels out of 255, two thumbnail pixels may be and still agree.
+	 * Defaults to 48.
+	 * @param levels The tolerance.
+	 * @return This CaptchaTraderImageIndex instance.
+	 */
+	public CaptchaTraderImageIndex setTolerance(int levels)
+	{
+		_tolerance = levels;
+		return this;
+	}
+
+	/**
+	 * Set the largest number of differing hash bits for two images to be candidates for the same CAPTCHA.
+	 * Defaults to 4. Changing it re-indexes the entries.
+	 * @param bits The threshold, out of 64 bits.
+	 * @return This CaptchaTraderImageIndex instance.
+	 */
+	public CaptchaTraderImageIndex setThreshold(int bits)
+	{
+		if (bits < 0 || bits > 63) {
+			throw new IllegalArgumentException("Threshold must be between 0 and 63 bits");
+		}
+		_lock.writeLock().lock();
+		try {
+			_threshold = bits;
+			_live = 0;
+			_tables = new ArrayList<Map<Long, List<Entry>>>();
+			for (int i = 0; i <= bits; i++) {
+				_tables.add(new HashMap<Long, List<Entry>>());
+			}
+			for (Entry entry : _order) {
+				if (!entry.removed) {
+					index(entry);
+				}
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * Set the number of entries kept, the oldest being dropped first. Each entry takes about a kilobyte;
+	 * defaults to 100000.
+	 * @return This CaptchaTraderImageIndex instance.
+	 */
+	public CaptchaTraderImageIndex setMaxEntries(int maxEntries)
+	{
+		_maxEntries = maxEntries;
+		return this;
+	}
+
+	/**
+	 * @return The number of lookups answered from the index.
+	 */
+	public long getHits()
+	{
+		return _hits.get();
+	}
+
+	/**
+	 * @return The number of lookups that had to be solved.
+	 */
+	public long getMisses()
+	{
+		return _misses.get();
+	}
+
+	/**
+	 * @return The number of entries removed because their answer was responded to as incorrect.
+	 */
+	public long getPruned()
+	{
+		return _pruned.get();
+	}
+
+	/**
+	 * @return The number of entries in the index.
+	 */
+	public int size()
+	{
+		_lock.readLock().lock();
+		try {
+			return _live;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Compute the 64 bit difference hash of an image, a bit being set where a cell is darker than its right
+	 * neighbour by more than a twentieth of the contrast between the darkest and lightest cells.
+	 */
+	public static long dHash(BufferedImage image)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		long[] sums = new long[9 * 8];
+		int[] counts = new int[9 * 8];
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			int cy = y * 8 / height;
+			for (int x = 0; x < width; x++) {
+				int rgb = row[x];
+				int gray = (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+				int cell = cy * 9 + x * 9 / width;
+				sums[cell] += gray;
+				counts[cell]++;
+			}
+		}
+		double[] means = new double[sums.length];
+		double min = 255;
+		double max = 0;
+		for (int i = 0; i < sums.length; i++) {
+			means[i] = counts[i] == 0 ? 0 : (double) sums[i] / counts[i];
+			min = Math.min(min, means[i]);
+			max = Math.max(max, means[i]);
+		}
+		// cells that differ by less than this are taken as equal, so that a flat background hashes the same however noisy
+		double margin = (max - min) / 20;
+		long hash = 0;
+		for (int y = 0; y < 8; y++) {
+			for (int x = 0; x < 8; x++) {
+				int left = y * 9 + x;
+				hash <<= 1;
+				if (means[left] + margin < means[left + 1]) {
+					hash |= 1;
+				}
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Reduce an image to a thumbnail of gray levels, averaged over the area of each pixel and stretched
+	 * to full contrast, so that re-encoding and changes of brightness leave it alike.
+	 */
+	static byte[] thumbnail(BufferedImage image)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		long[] sums = new long[THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT];
+		int[] counts = new int[sums.length];
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			int ty = y * THUMBNAIL_HEIGHT / height;
+			for (int x = 0; x < width; x++) {
+				int rgb = row[x];
+				int gray = (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+				int pixel = ty * THUMBNAIL_WIDTH + x * THUMBNAIL_WIDTH / width;
+				sums[pixel] += gray;
+				counts[pixel]++;
+			}
+		}
+		int min = 255;
+		int max = 0;
+		int[] grays = new int[sums.length];
+		for (int i = 0; i < sums.length; i++) {
+			grays[i] = counts[i] == 0 ? 0 : (int) (sums[i] / counts[i]);
+			min = Math.min(min, grays[i]);
+			max = Math.max(max, grays[i]);
+		}
+		byte[] thumbnail = new byte[sums.length];
+		for (int i = 0; i < sums.length; i++) {
+			thumbnail[i] = (byte) (max == min ? 0 : (grays[i] - min) * 255 / (max - min));
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * @return Whether no pixels of two thumbnails differ by more than the tolerance.
+	 */
+	static boolean alike(byte[] a, byte[] b, int tolerance)
+	{
+		for (int i = 0; i < a.length; i++) {
+			if (Math.abs((a[i] & 0xff) - (b[i] & 0xff)) > tolerance) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of bits two hashes differ in.
+	 */
+	public static int distance(long a, long b)
+	{
+		return Long.bitCount(a ^ b);
+	}
+
+	/**
+	 * Hash a CAPTCHA held in a file or in memory.
+	 * @return The hash and thumbnail, or null if the CAPTCHA is not an image that can be decoded.
+	 */
+	static Print print(Object captcha)
+	{
+		BufferedImage image = null;
+		try {
+			if (captcha instanceof File) {
+				image = ImageIO.read((File) captcha);
+			} else if (captcha instanceof byte[]) {
+				image = ImageIO.read(new ByteArrayInputStream((byte[]) captcha));
+			}
+		} catch (IOException ioe) {
+			// not an image
+		}
+		if (image == null || image.getWidth() < 9 || image.getHeight() < 8) {
+			return null;
+		}
+		Print print = new Print();
+		print.hash = dHash(image);
+		print.thumbnail = thumbnail(image);
+		return print;
+	}
+
+	/**
+	 * @return Whether a ticket was handed out with an answer reused from an index.
+	 */
+	static boolean isReused(String ticket)
+	{
+		return ticket != null && ticket.startsWith(REUSED);
+	}
+
+	/**
+	 * Find a confident match for an image.
+	 * @return A ticket of its own and the answer of the match, or null if there is none.
+	 */
+	String[] find(Print print)
+	{
+		Entry best = null;
+		int bestDistance = Integer.MAX_VALUE;
+		boolean ambiguous = false;
+		boolean confirm = _confirm;
+		int tolerance = _tolerance;
+		_lock.readLock().lock();
+		try {
+			Set<Entry> seen = new HashSet<Entry>();
+			for (int i = 0; i < _tables.size(); i++) {
+				List<Entry> bucket = _tables.get(i).get(chunk(print.hash, i));
+				if (bucket == null) {
+					continue;
+				}
+				for (Entry entry : bucket) {
+					int d = distance(print.hash, entry.hash);
+					if (d > _threshold || !seen.add(entry)) {
+						continue;
+					}
+					if (confirm && !alike(print.thumbnail, entry.thumbnail, tolerance)) {
+						continue;
+					}
+					if (best != null && !best.answer.equals(entry.answer)) {
+						ambiguous = true;
+					}
+					if (d < bestDistance) {
+						best = entry;
+						bestDistance = d;
+					}
+				}
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		if (best == null || ambiguous) {
+			_misses.incrementAndGet();
+			return null;
+		}
+		_hits.incrementAndGet();
+		String ticket;
+		_lock.writeLock().lock();
+		try {
+			ticket = REUSED + _nextReused++;
+			_reused.put(ticket, best);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+		return new String[] { ticket, best.answer };
+	}
+
+	/**
+	 * Remember the answer a solver gave to a CAPTCHA.
+	 */
+	void add(Print print, String ticket, String answer)
+	{
+		if (answer == null) {
+			return;
+		}
+		Entry entry = new Entry();
+		entry.hash = print.hash;
+		entry.thumbnail = print.thumbnail;
+		entry.ticket = ticket;
+		entry.answer = answer;
+		_lock.writeLock().lock();
+		try {
+			index(entry);
+			_order.add(entry);
+			_tickets.put(ticket, entry);
+			while (_order.size() > _maxEntries) {
+				Entry oldest = _order.poll();
+				unindex(oldest);
+				if (_tickets.get(oldest.ticket) == oldest) {
+					_tickets.remove(oldest.ticket);
+				}
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Take a response to a job: an incorrect answer is removed from the index. Responses about reused
+	 * answers are not the solver's work, and are never sent to the server; see {@link #isReused(String)}.
+	 */
+	void respond(String ticket, boolean isCorrect)
+	{
+		_lock.writeLock().lock();
+		try {
+			Entry reused = _reused.get(ticket);
+			Entry entry = reused != null ? reused : _tickets.get(ticket);
+			if (entry != null && !isCorrect && !entry.removed) {
+				// the ticket stays known until the entry ages out
+				unindex(entry);
+				_pruned.incrementAndGet();
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	private void index(Entry entry)
+	{
+		_live++;
+		for (int i = 0; i < _tables.size(); i++) {
+			Long key = chunk(entry.hash, i);
+			List<Entry> bucket = _tables.get(i).get(key);
+			if (bucket == null) {
+				bucket = new ArrayList<Entry>(2);
+				_tables.get(i).put(key, bucket);
+			}
+			bucket.add(entry);
+		}
+	}
+
+	private void unindex(Entry entry)
+	{
+		if (entry.removed) {
+			return;
+		}
+		entry.removed = true;
+		_live--;
+		for (int i = 0; i < _tables.size(); i++) {
+			Long key = chunk(entry.hash, i);
+			List<Entry> bucket = _tables.get(i).get(key);
+			if (bucket != null) {
+				bucket.remove(entry);
+				if (bucket.isEmpty()) {
+					_tables.get(i).remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The value of a chunk of a hash, the 64 bits being cut into threshold + 1 chunks.
+	 */
+	private long chunk(long hash, int i)
+	{
+		int chunks = _tables.size();
+		int from = i * 64 / chunks;
+		int to = (i + 1) * 64 / chunks;
+		long mask = to - from == 64 ? -1L : (1L << (to - from)) - 1;
+		return (hash >>> from) & mask;
+	}
+}
@@ -0,0 +1,376 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * <p>CaptchaTraderImageProcessor shrinks CAPTCHA images before they are uploaded: it crops uniform
+ * borders, downscales images larger than a size limit, converts to grayscale and re-encodes to a
+ * compact format. Images that cannot be decoded, or that would not get smaller, are uploaded as they are.</p>
+ *
+ * <p>Work runs on a bounded pool shared by all processors unless one is given. When the pool is
+ * saturated the submitting thread does the work itself, so a burst of submissions cannot queue
+ * an unbounded number of decoded images.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderImageProcessor shrink = new CaptchaTraderImageProcessor()
+ *        .setCropBorders(true)
+ *        .setMaxSize(300, 100)
+ *        .setGrayscale(true);
+ *    ct.setImageProcessor(shrink);                      // for every submission
+ *    ct.setImageProcessor("legacy-site", shrink);       // or only for one source
+ *    ct.submit(captcha, "legacy-site");
+ *    System.out.println(shrink.getBytesSaved() + " bytes saved in " + shrink.getCpuMillis() + "ms");
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderImageProcessor
+{
+	private static ExecutorService _sharedPool = null;
+
+	private ExecutorService _pool;
+	private boolean _cropBorders = false;
+	private int _cropTolerance = 16;
+	private int _maxWidth = 0;
+	private int _maxHeight = 0;
+	private boolean _grayscale = false;
+	private String _format = "png";
+
+	private AtomicLong _processed = new AtomicLong();
+	private AtomicLong _bytesIn = new AtomicLong();
+	private AtomicLong _bytesOut = new AtomicLong();
+	private AtomicLong _cpuNanos = new AtomicLong();
+
+	/**
+	 * Create a processor that runs on the shared pool, sized to the number of processors.
+	 */
+	public CaptchaTraderImageProcessor()
+	{
+		this(sharedPool());
+	}
+
+	/**
+	 * Create a processor that runs on the given pool.
+	 * @param pool The executor to run image work on.
+	 */
+	public CaptchaTraderImageProcessor(ExecutorService pool)
+	{
+		_pool = pool;
+	}
+
+	/**
+	 * Create a bounded pool for image work. When all threads are busy and the queue is full,
+	 * work runs on the submitting thread.
+	 * @param threads The number of worker threads.
+	 * @param queueSize The number of images that may wait for a worker.
+	 * @return A new pool of daemon threads.
+	 */
+	public static ExecutorService newPool(int threads, int queueSize)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queueSize),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "captchatrader-image-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			},
+			new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	private static synchronized ExecutorService sharedPool()
+	{
+		if (_sharedPool == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			_sharedPool = newPool(threads, threads * 4);
+		}
+		return _sharedPool;
+	}
+
+	/**
+	 * Crop away borders of a uniform color.
+	 * @return This CaptchaTraderImageProcessor instance.
+	 */
+	public CaptchaTraderImageProcessor setCropBorders(boolean cropBorders)
+	{
+		_cropBorders = cropBorders;
+		return this;
+	}
+
+	/**
+	 * Set how far, per color channel, a pixel may differ from the border color and still count as border.
+	 * @return This CaptchaTraderImageProcessor instance.
+	 */
+	public CaptchaTraderImageProcessor setCropTolerance(int tolerance)
+	{
+		_cropTolerance = tolerance;
+		return this;
+	}
+
+	/**
+	 * Downscale images that exceed the given size, keeping their aspect ratio.
+	 * @param maxWidth The largest width in pixels, or 0 for no limit.
+	 * @param maxHeight The largest height in pixels, or 0 for no limit.
+	 * @return This CaptchaTraderImageProcessor instance.
+	 */
+	public CaptchaTraderImageProcessor setMaxSize(int maxWidth, int maxHeight)
+	{
+		_maxWidth = maxWidth;
+		_maxHeight = maxHeight;
+		return this;
+	}
+
+	/**
+	 * Convert images to 8 bit grayscale.
+	 * @return This CaptchaTraderImageProcessor instance.
+	 */
+	public CaptchaTraderImageProcessor setGrayscale(boolean grayscale)
+	{
+		_grayscale = grayscale;
+		return this;
+	}
+
+	/**
+	 * Set the format images are re-encoded to.
+	 * @param format An ImageIO format name such as "png", "gif" or "jpg".
+	 * @return This CaptchaTraderImageProcessor instance.
+	 */
+	public CaptchaTraderImageProcessor setFormat(String format)
+	{
+		_format = format;
+		return this;
+	}
+
+	/**
+	 * @return The format images are re-encoded to.
+	 */
+	public String getFormat()
+	{
+		return _format;
+	}
+
+	/**
+	 * @return The number of images that were shrunk.
+	 */
+	public long getProcessed()
+	{
+		return _processed.get();
+	}
+
+	/**
+	 * @return The number of bytes saved on uploads by shrinking images.
+	 */
+	public long getBytesSaved()
+	{
+		return _bytesIn.get() - _bytesOut.get();
+	}
+
+	/**
+	 * @return The CPU time spent processing images, including images that did not get smaller, in milliseconds.
+	 */
+	public long getCpuMillis()
+	{
+		return _cpuNanos.get() / 1000000;
+	}
+
+	/**
+	 * Shrink an image file.
+	 * @return The re-encoded image, or null if the file should be uploaded as it is.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public byte[] process(File file)
+		throws IOException
+	{
+		byte[] image = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int off = 0, nread;
+			while (off < image.length && (nread = in.read(image, off, image.length - off)) >= 0) {
+				off += nread;
+			}
+		} finally {
+			in.close();
+		}
+		return process(image);
+	}
+
+	/**
+	 * Shrink an encoded image, on this processor's pool.
+	 * @return The re-encoded image, or null if the original should be uploaded as it is.
+	 * @throws IOException If interrupted while waiting for the pool.
+	 */
+	public byte[] process(final byte[] image)
+		throws IOException
+	{
+		try {
+			return _pool.submit(new Callable<byte[]>() {
+				public byte[] call()
+				{
+					return shrink(image);
+				}
+			}).get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while processing image");
+		} catch (ExecutionException ee) {
+			// leave the image as it is
+			return null;
+		}
+	}
+
+	private byte[] shrink(byte[] image)
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+		long start = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+		try {
+			BufferedImage img = ImageIO.read(new ByteArrayInputStream(image));
+			if (img == null) {
+				return null;
+			}
+			if (_cropBorders) {
+				img = crop(img);
+			}
+			img = scale(img);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(image.length);
+			if (!ImageIO.write(img, _format, out) || out.size() >= image.length) {
+				return null;
+			}
+			_processed.incrementAndGet();
+			_bytesIn.addAndGet(image.length);
+			_bytesOut.addAndGet(out.size());
+			return out.toByteArray();
+		} catch (IOException ioe) {
+			return null;
+		} finally {
+			_cpuNanos.addAndGet((cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - start);
+		}
+	}
+
+	/**
+	 * Crop to the bounding box of pixels that differ from the top left pixel.
+	 */
+	private BufferedImage crop(BufferedImage img)
+	{
+		int w = img.getWidth(), h = img.getHeight();
+		int border = img.getRGB(0, 0);
+		int top = h, bottom = -1, left = w, right = -1;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				if (!similar(img.getRGB(x, y), border)) {
+					if (y < top) top = y;
+					if (y > bottom) bottom = y;
+					if (x < left) left = x;
+					if (x > right) right = x;
+				}
+			}
+		}
+		if (bottom < 0 || (top == 0 && left == 0 && bottom == h - 1 && right == w - 1)) {
+			return img;
+		}
+		return img.getSubimage(left, top, right - left + 1, bottom - top + 1);
+	}
+
+	private boolean similar(int a, int b)
+	{
+		for (int shift = 0; shift < 32; shift += 8) {
+			if (Math.abs(((a >>> shift) & 0xff) - ((b >>> shift) & 0xff)) > _cropTolerance) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Downscale and convert in a single draw. JPEG cannot hold an alpha channel, so it always gets plain RGB.
+	 */
+	private BufferedImage scale(BufferedImage img)
+	{
+		int w = img.getWidth(), h = img.getHeight();
+		double factor = 1.0;
+		if (_maxWidth > 0 && w > _maxWidth) {
+			factor = Math.min(factor, (double) _maxWidth / w);
+		}
+		if (_maxHeight > 0 && h > _maxHeight) {
+			factor = Math.min(factor, (double) _maxHeight / h);
+		}
+		int type = _grayscale ? BufferedImage.TYPE_BYTE_GRAY
+			: (img.getColorModel().hasAlpha() && !isJpeg() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		if (factor == 1.0 && img.getType() == type) {
+			return img;
+		}
+		int sw = Math.max(1, (int) Math.round(w * factor));
+		int sh = Math.max(1, (int) Math.round(h * factor));
+		BufferedImage scaled = new BufferedImage(sw, sh, type);
+		Graphics2D g = scaled.createGraphics();
+		try {
+			if (img.getColorModel().hasAlpha() && type != BufferedImage.TYPE_INT_ARGB) {
+				// transparent pixels would otherwise turn black
+				g.setColor(Color.WHITE);
+				g.fillRect(0, 0, sw, sh);
+			}
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(img, 0, 0, sw, sh, null);
+		} finally {
+			g.dispose();
+		}
+		return scaled;
+	}
+
+	private boolean isJpeg()
+	{
+		return "jpg".equalsIgnoreCase(_format) || "jpeg".equalsIgnoreCase(_format);
+	}
+}
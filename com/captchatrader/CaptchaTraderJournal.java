@@ -0,0 +1,616 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>CaptchaTraderJournal records jobs in flight in an append-only file, so that a process that dies
+ * mid-solve does not lose track of the tickets it has paid for.</p>
+ *
+ * <p>The journal records each submission before it is sent, its ticket and answer once they arrive,
+ * and each response before and after it is sent. Records are written as they happen but forced to
+ * disk in batches, every {@link #setSyncInterval(long) sync interval}, by a thread of the journal's own,
+ * so submissions never wait for the disk; a crash loses at most the records of the last interval.</p>
+ *
+ * <p>Opening a journal replays it. Responses that were not confirmed by the server are re-sent by
+ * {@link com.captchatrader.CaptchaTrader#recover() CaptchaTrader.recover()}. A CAPTCHA that was solved
+ * before the process died but never responded to is not submitted again: submitting the same, unchanged
+ * file returns the journaled answer and ticket instead, once. CAPTCHAs solved since the journal was opened
+ * are never answered this way, and neither are URLs, which may serve a new image on every fetch.
+ * Submissions that were in flight when the process died have no ticket to recover and are only counted,
+ * see {@link #getLost()}. Entries older than the retention time are
+ * forgotten, and the file is rewritten with only the live entries when it is opened and as it grows.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderJournal journal = new CaptchaTraderJournal(new File("captchatrader.journal"));
+ *    ct.setJournal(journal);
+ *    ct.recover();
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderJournal implements Closeable
+{
+	private static final String SUBMIT = "S";
+	private static final String TICKET = "T";
+	private static final String FAILED = "F";
+	private static final String RESPOND = "R";
+	private static final String DONE = "D";
+	private static final long COMPACT_BYTES = 1024 * 1024;
+
+	private File _file;
+	private long _retention;
+	private volatile long _syncInterval = 100;
+	private FileChannel _channel;
+	private ByteArrayOutputStream _unwritten = new ByteArrayOutputStream();
+	private long _written = 0;
+	private Object _io = new Object();
+	private Thread _syncer;
+	/**
+	 * Waited on by the syncer between batches, and notified to stop it without interrupting its I/O.
+	 */
+	private Object _sleep = new Object();
+	private volatile boolean _closed = false;
+
+	private long _nextId = 1;
+	private Map<Long, Entry> _entries = new LinkedHashMap<Long, Entry>();
+	/**
+	 * Solved entries replayed from a previous run, by key, that were never responded to.
+	 */
+	private Map<String, Entry> _answered = new HashMap<String, Entry>();
+	private Map<String, Entry> _tickets = new HashMap<String, Entry>();
+	private int _lost = 0;
+	private int _recovered = 0;
+
+	/**
+	 * A journaled submission and what is known about it.
+	 */
+	private static class Entry
+	{
+		long id;
+		long time;
+		String key;
+		String ticket = null;
+		String answer = null;
+		Boolean isCorrect = null;
+	}
+
+	/**
+	 * Open a journal, replaying the jobs recorded in it during the last hour.
+	 * @param file The journal file, created if it does not exist.
+	 * @throws IOException If the journal can not be read or written.
+	 */
+	public CaptchaTraderJournal(File file)
+		throws IOException
+	{
+		this(file, 3600000);
+	}
+
+	/**
+	 * Open a journal, replaying the jobs recorded in it.
+	 * @param file The journal file, created if it does not exist.
+	 * @param retention How long in milliseconds a job is remembered without being responded to.
+	 * @throws IOException If the journal can not be read or written.
+	 */
+	public CaptchaTraderJournal(File file, long retention)
+		throws IOException
+	{
+		_file = file;
+		_retention = retention;
+		if (file.exists()) {
+			replay();
+		}
+		synchronized (_io) {
+			compact();
+		}
+		_syncer = new Thread(new Runnable() {
+			public void run()
+			{
+				syncLoop();
+			}
+		}, "captchatrader-journal");
+		_syncer.setDaemon(true);
+		_syncer.start();
+	}
+
+	/**
+	 * Set how often records are forced to disk. 0 forces every record as it is written.
+	 * @param millis The interval in milliseconds.
+	 * @return This CaptchaTraderJournal instance.
+	 */
+	public CaptchaTraderJournal setSyncInterval(long millis)
+	{
+		_syncInterval = millis;
+		return this;
+	}
+
+	/**
+	 * @return The number of submissions found in flight on replay, whose tickets are unknown.
+	 */
+	public synchronized int getLost()
+	{
+		return _lost;
+	}
+
+	/**
+	 * @return The number of submissions answered from the journal instead of being sent again.
+	 */
+	public synchronized int getRecovered()
+	{
+		return _recovered;
+	}
+
+	/**
+	 * @return The number of jobs in flight or waiting to be responded to.
+	 */
+	public synchronized int getPending()
+	{
+		return _entries.size();
+	}
+
+	/**
+	 * Force all records written so far to disk.
+	 * @throws IOException If the journal can not be written.
+	 */
+	public void sync()
+		throws IOException
+	{
+		synchronized (_io) {
+			flush();
+			if (_channel != null) {
+				_channel.force(false);
+			}
+		}
+	}
+
+	/**
+	 * Force all records to disk and close the journal.
+	 * @throws IOException If the journal can not be written.
+	 */
+	public void close()
+		throws IOException
+	{
+		_closed = true;
+		synchronized (_sleep) {
+			_sleep.notifyAll();
+		}
+		// an interrupt during channel I/O would close the channel under the last batch
+		try {
+			_syncer.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (_io) {
+			sync();
+			if (_channel != null) {
+				_channel.close();
+				_channel = null;
+			}
+		}
+	}
+
+	/**
+	 * The key under which a CAPTCHA is remembered, or null if it can not be recognized again. A URL
+	 * can not: the same URL may serve a different image on every fetch.
+	 */
+	static String key(Object captcha)
+	{
+		if (captcha instanceof File) {
+			File file = (File) captcha;
+			return "file:" + file.getAbsolutePath() + "?" + file.length() + "@" + file.lastModified();
+		}
+		return null;
+	}
+
+	/**
+	 * Take the ticket and answer of a solved CAPTCHA that was never responded to.
+	 * @return The ticket id and the answer, or null if the CAPTCHA has to be submitted.
+	 */
+	synchronized String[] answered(String key)
+	{
+		Entry entry = key == null ? null : _answered.remove(key);
+		if (entry == null) {
+			return null;
+		}
+		_recovered++;
+		return new String[] { entry.ticket, entry.answer };
+	}
+
+	/**
+	 * Record that a CAPTCHA is about to be submitted.
+	 * @return The id of the job in this journal.
+	 */
+	long submitting(String key)
+		throws IOException
+	{
+		Entry entry = new Entry();
+		entry.time = System.currentTimeMillis();
+		entry.key = key;
+		synchronized (this) {
+			entry.id = _nextId++;
+			_entries.put(entry.id, entry);
+			append(entry.time, SUBMIT, String.valueOf(entry.id), key);
+		}
+		durable();
+		return entry.id;
+	}
+
+	/**
+	 * Record the ticket and answer a submission got.
+	 */
+	void submitted(long id, String ticket, String answer)
+		throws IOException
+	{
+		synchronized (this) {
+			Entry entry = _entries.get(id);
+			if (entry == null) {
+				return;
+			}
+			entry.ticket = ticket;
+			entry.answer = answer;
+			// not answerable from the journal: only a crash leaves a solved CAPTCHA unused
+			_tickets.put(ticket, entry);
+			append(System.currentTimeMillis(), TICKET, String.valueOf(id), ticket, answer);
+		}
+		durable();
+	}
+
+	/**
+	 * Record that a submission failed without a ticket.
+	 */
+	void failed(long id)
+		throws IOException
+	{
+		synchronized (this) {
+			if (_entries.remove(id) != null) {
+				append(System.currentTimeMillis(), FAILED, String.valueOf(id));
+			}
+		}
+		durable();
+	}
+
+	/**
+	 * Record that a response is about to be sent for a ticket.
+	 */
+	void responding(String ticket, boolean isCorrect)
+		throws IOException
+	{
+		synchronized (this) {
+			Entry entry = _tickets.get(ticket);
+			if (entry == null) {
+				entry = new Entry();
+				entry.id = _nextId++;
+				entry.time = System.currentTimeMillis();
+				entry.ticket = ticket;
+				_entries.put(entry.id, entry);
+				_tickets.put(ticket, entry);
+			} else if (entry.key != null && _answered.get(entry.key) == entry) {
+				_answered.remove(entry.key);
+			}
+			entry.isCorrect = isCorrect;
+			append(System.currentTimeMillis(), RESPOND, ticket, isCorrect ? "1" : "0");
+		}
+		durable();
+	}
+
+	/**
+	 * Record that the server has seen the response for a ticket.
+	 */
+	void responded(String ticket)
+		throws IOException
+	{
+		synchronized (this) {
+			Entry entry = _tickets.remove(ticket);
+			if (entry != null) {
+				forget(entry);
+				append(System.currentTimeMillis(), DONE, ticket);
+			}
+		}
+		durable();
+	}
+
+	/**
+	 * @return The tickets whose responses were not confirmed by the server, with the responses.
+	 */
+	synchronized Map<String, Boolean> pendingResponses()
+	{
+		Map<String, Boolean> pending = new LinkedHashMap<String, Boolean>();
+		for (Entry entry : _entries.values()) {
+			if (entry.isCorrect != null) {
+				pending.put(entry.ticket, entry.isCorrect);
+			}
+		}
+		return pending;
+	}
+
+	private void forget(Entry entry)
+	{
+		_entries.remove(entry.id);
+		if (entry.ticket != null) {
+			_tickets.remove(entry.ticket);
+		}
+		if (entry.key != null && _answered.get(entry.key) == entry) {
+			_answered.remove(entry.key);
+		}
+	}
+
+	/**
+	 * Queue a record for writing. Must be called holding the lock of this journal.
+	 */
+	private void append(long time, String... fields)
+		throws IOException
+	{
+		record(_unwritten, time, fields);
+	}
+
+	/**
+	 * Force queued records to disk right away when every record is to be forced as it is written.
+	 * Must not be called holding the lock of this journal.
+	 */
+	private void durable()
+		throws IOException
+	{
+		if (_syncInterval <= 0) {
+			sync();
+		}
+	}
+
+	private static void record(ByteArrayOutputStream out, long time, String... fields)
+		throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		line.append(time);
+		for (String field : fields) {
+			line.append(' ').append(field == null ? "-" : encode(field));
+		}
+		line.append('\n');
+		byte[] bytes = line.toString().getBytes("UTF-8");
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write queued records to the file, without forcing them to disk.
+	 */
+	private void flush()
+		throws IOException
+	{
+		byte[] bytes;
+		synchronized (this) {
+			if (_unwritten.size() == 0) {
+				return;
+			}
+			bytes = _unwritten.toByteArray();
+			_unwritten.reset();
+		}
+		if (_channel == null) {
+			throw new IOException("Journal " + _file + " is closed");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			_channel.write(buffer);
+		}
+		_written += bytes.length;
+	}
+
+	private void syncLoop()
+	{
+		while (!_closed) {
+			try {
+				synchronized (_sleep) {
+					if (!_closed) {
+						_sleep.wait(Math.max(_syncInterval, 10));
+					}
+				}
+				synchronized (_io) {
+					if (_closed) {
+						return;
+					}
+					sync();
+					if (_written > COMPACT_BYTES) {
+						compact();
+					}
+				}
+			} catch (InterruptedException ie) {
+				return;
+			} catch (IOException ioe) {
+				// keep the records queued and try again next interval
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the state of the journal from its file.
+	 */
+	private void replay()
+		throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				if (fields.length < 3) {
+					// a record torn by the crash
+					continue;
+				}
+				try {
+					replay(Long.parseLong(fields[0]), fields);
+				} catch (RuntimeException re) {
+					// a record torn by the crash
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext(); ) {
+			if (it.next().ticket == null) {
+				it.remove();
+				_lost++;
+			}
+		}
+	}
+
+	private void replay(long time, String[] fields)
+	{
+		String type = fields[1];
+		if (SUBMIT.equals(type)) {
+			Entry entry = new Entry();
+			entry.id = Long.parseLong(fields[2]);
+			entry.time = time;
+			entry.key = fields.length > 3 ? decode(fields[3]) : null;
+			_entries.put(entry.id, entry);
+			_nextId = Math.max(_nextId, entry.id + 1);
+		} else if (TICKET.equals(type)) {
+			Entry entry = _entries.get(Long.parseLong(fields[2]));
+			if (entry != null) {
+				entry.ticket = decode(fields[3]);
+				entry.answer = fields.length > 4 ? decode(fields[4]) : null;
+				_tickets.put(entry.ticket, entry);
+				if (entry.key != null) {
+					_answered.put(entry.key, entry);
+				}
+			}
+		} else if (FAILED.equals(type)) {
+			_entries.remove(Long.parseLong(fields[2]));
+		} else if (RESPOND.equals(type)) {
+			String ticket = decode(fields[2]);
+			Entry entry = _tickets.get(ticket);
+			if (entry == null) {
+				entry = new Entry();
+				entry.id = _nextId++;
+				entry.time = time;
+				entry.ticket = ticket;
+				_entries.put(entry.id, entry);
+				_tickets.put(ticket, entry);
+			} else if (entry.key != null && _answered.get(entry.key) == entry) {
+				_answered.remove(entry.key);
+			}
+			entry.isCorrect = "1".equals(fields[3]);
+		} else if (DONE.equals(type)) {
+			Entry entry = _tickets.get(decode(fields[2]));
+			if (entry != null) {
+				forget(entry);
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the file with only the live entries, dropping those past the retention time.
+	 * Must be called holding the io lock.
+	 */
+	private void compact()
+		throws IOException
+	{
+		File tmp = new File(_file.getPath() + ".tmp");
+		FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+										   StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		long size = 0;
+		try {
+			ByteArrayOutputStream live = new ByteArrayOutputStream();
+			synchronized (this) {
+				// records queued so far describe entries that are rewritten below
+				_unwritten.reset();
+				long expired = System.currentTimeMillis() - _retention;
+				for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext(); ) {
+					Entry entry = it.next();
+					if (entry.time < expired) {
+						it.remove();
+						if (entry.ticket != null) {
+							_tickets.remove(entry.ticket);
+						}
+						if (entry.key != null && _answered.get(entry.key) == entry) {
+							_answered.remove(entry.key);
+						}
+						continue;
+					}
+					record(live, entry.time, SUBMIT, String.valueOf(entry.id), entry.key);
+					if (entry.ticket != null) {
+						record(live, entry.time, TICKET, String.valueOf(entry.id), entry.ticket, entry.answer);
+					}
+					if (entry.isCorrect != null) {
+						record(live, entry.time, RESPOND, entry.ticket, entry.isCorrect ? "1" : "0");
+					}
+				}
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(live.toByteArray());
+			size = buffer.remaining();
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (_channel != null) {
+			_channel.close();
+		}
+		_channel = FileChannel.open(_file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		_written = 0;
+	}
+
+	private static String encode(String value)
+	{
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	private static String decode(String value)
+	{
+		if ("-".equals(value)) {
+			return null;
+		}
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+	}
+}
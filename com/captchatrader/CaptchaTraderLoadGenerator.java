@@ -0,0 +1,397 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>CaptchaTraderLoadGenerator drives {@link com.captchatrader.CaptchaTrader CaptchaTrader} submissions
+ * at a target rate and reports throughput, latency percentiles and the resources used by the client.
+ * It is meant to be pointed at a {@link com.captchatrader.CaptchaTraderSimulator CaptchaTraderSimulator}
+ * or another stand-in for the API, never at the public service.</p>
+ *
+ * <p>Each worker thread owns its own CaptchaTrader instance. With a target rate, submissions are
+ * issued on a fixed schedule and latency is measured from the scheduled time, so a client that falls
+ * behind is charged for the delay it causes rather than hiding it. With no target rate, every worker
+ * submits back to back.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderSimulator sim = new CaptchaTraderSimulator()
+ *        .setSolveLatency(CaptchaTraderSimulator.Latency.logNormal(500, 0.5))
+ *        .start();
+ *    CaptchaTraderLoadGenerator.Report report = new CaptchaTraderLoadGenerator(sim.getBaseUrl())
+ *        .setThreads(200)
+ *        .setRatePerMinute(12000)
+ *        .setDuration(60000)
+ *        .run();
+ *    System.out.println(report);
+ *    sim.stop();
+ *
+ * From the command line:
+ *
+ *    java com.captchatrader.CaptchaTraderLoadGenerator [ratePerMinute [threads [seconds [solveMillis]]]]
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderLoadGenerator
+{
+	/**
+	 * The outcome of a load run.
+	 */
+	public static class Report
+	{
+		long submits;
+		long errors;
+		long elapsedMillis;
+		long[] latencies;
+		long cpuMillis;
+		long peakHeapBytes;
+		int peakThreads;
+		long gcCount;
+		long gcMillis;
+
+		/**
+		 * @return The number of submissions that returned an answer.
+		 */
+		public long getSubmits() { return submits; }
+		/**
+		 * @return The number of submissions that threw.
+		 */
+		public long getErrors() { return errors; }
+		/**
+		 * @return The wall clock duration of the run in milliseconds.
+		 */
+		public long getElapsedMillis() { return elapsedMillis; }
+		/**
+		 * @return Successful submissions per minute.
+		 */
+		public double getThroughputPerMinute()
+		{
+			return elapsedMillis == 0 ? 0 : submits * 60000.0 / elapsedMillis;
+		}
+		/**
+		 * @param percentile A percentile between 0 and 100.
+		 * @return The submission latency at the given percentile, in milliseconds.
+		 */
+		public long getLatency(double percentile)
+		{
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int i = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(latencies.length - 1, i))];
+		}
+		/**
+		 * @return CPU time consumed by the worker threads, in milliseconds.
+		 */
+		public long getCpuMillis() { return cpuMillis; }
+		/**
+		 * @return The peak heap usage during the run, in bytes.
+		 */
+		public long getPeakHeapBytes() { return peakHeapBytes; }
+		/**
+		 * @return The peak number of live threads in the JVM during the run.
+		 */
+		public int getPeakThreads() { return peakThreads; }
+		/**
+		 * @return The number of garbage collections during the run.
+		 */
+		public long getGcCount() { return gcCount; }
+		/**
+		 * @return Time spent in garbage collection during the run, in milliseconds.
+		 */
+		public long getGcMillis() { return gcMillis; }
+
+		public String toString()
+		{
+			return "submits=" + submits + " errors=" + errors
+				+ " elapsed=" + elapsedMillis + "ms"
+				+ " throughput=" + Math.round(getThroughputPerMinute()) + "/min"
+				+ " latency p50=" + getLatency(50) + "ms p90=" + getLatency(90)
+				+ "ms p99=" + getLatency(99) + "ms max=" + getLatency(100) + "ms"
+				+ " cpu=" + cpuMillis + "ms heapPeak=" + (peakHeapBytes >> 20) + "MB"
+				+ " threadsPeak=" + peakThreads
+				+ " gc=" + gcCount + "/" + gcMillis + "ms";
+		}
+	}
+
+	private String _baseUrl;
+	private String _apiKey = "loadgen";
+	private String _username = "loadgen";
+	private String _password = "loadgen";
+	private int _threads = 16;
+	private double _ratePerMinute = 0;
+	private long _durationMillis = 10000;
+	private File _captcha = null;
+	private int _captchaBytes = 5 * 1024;
+
+	/**
+	 * Create a load generator against a simulator.
+	 * @param baseUrl The base URL of the {@link com.captchatrader.CaptchaTraderSimulator CaptchaTraderSimulator}.
+	 */
+	public CaptchaTraderLoadGenerator(String baseUrl)
+	{
+		_baseUrl = baseUrl;
+	}
+
+	/**
+	 * Set the credentials submitted with every job.
+	 * @return This CaptchaTraderLoadGenerator instance.
+	 */
+	public CaptchaTraderLoadGenerator setCredentials(String apiKey, String username, String password)
+	{
+		_apiKey = apiKey;
+		_username = username;
+		_password = password;
+		return this;
+	}
+
+	/**
+	 * Set the number of worker threads, which bounds the number of submissions in flight.
+	 * @return This CaptchaTraderLoadGenerator instance.
+	 */
+	public CaptchaTraderLoadGenerator setThreads(int threads)
+	{
+		_threads = threads;
+		return this;
+	}
+
+	/**
+	 * Set the target submission rate.
+	 * @param ratePerMinute Submissions per minute, or 0 to submit as fast as the workers allow.
+	 * @return This CaptchaTraderLoadGenerator instance.
+	 */
+	public CaptchaTraderLoadGenerator setRatePerMinute(double ratePerMinute)
+	{
+		_ratePerMinute = ratePerMinute;
+		return this;
+	}
+
+	/**
+	 * Set how long to keep submitting.
+	 * @param millis The duration of the run in milliseconds.
+	 * @return This CaptchaTraderLoadGenerator instance.
+	 */
+	public CaptchaTraderLoadGenerator setDuration(long millis)
+	{
+		_durationMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Set the CAPTCHA file to submit. By default a file of random bytes is generated.
+	 * @return This CaptchaTraderLoadGenerator instance.
+	 */
+	public CaptchaTraderLoadGenerator setCaptcha(File captcha)
+	{
+		_captcha = captcha;
+		return this;
+	}
+
+	/**
+	 * Set the size of the generated CAPTCHA file, when none is given.
+	 * @return This CaptchaTraderLoadGenerator instance.
+	 */
+	public CaptchaTraderLoadGenerator setCaptchaBytes(int bytes)
+	{
+		_captchaBytes = bytes;
+		return this;
+	}
+
+	/**
+	 * Run the load and wait for it to finish.
+	 * @return The measurements of the run.
+	 * @throws IOException If the generated CAPTCHA file cannot be written.
+	 * @throws InterruptedException If interrupted while waiting for the workers.
+	 */
+	public Report run()
+		throws IOException, InterruptedException
+	{
+		final File captcha = _captcha != null ? _captcha : generateCaptcha();
+		final long start = System.currentTimeMillis();
+		final long end = start + _durationMillis;
+		final double interval = _ratePerMinute > 0 ? 60000.0 / _ratePerMinute : 0;
+		final AtomicLong slot = new AtomicLong();
+		final AtomicLong submits = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong cpuNanos = new AtomicLong();
+		final List<long[]> samples = Collections.synchronizedList(new ArrayList<long[]>());
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		long gcCount = 0, gcMillis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount -= Math.max(0, gc.getCollectionCount());
+			gcMillis -= Math.max(0, gc.getCollectionTime());
+		}
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+		threads.resetPeakThreadCount();
+
+		try {
+			Thread[] workers = new Thread[_threads];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Thread("captchatrader-loadgen-" + i) {
+					public void run()
+					{
+						CaptchaTrader ct = new CaptchaTrader(_apiKey, _username, _password).setBaseUrl(_baseUrl);
+						long[] latencies = new long[1024];
+						int count = 0;
+						while (true) {
+							long scheduled;
+							if (interval > 0) {
+								scheduled = start + (long) (slot.getAndIncrement() * interval);
+								long wait = scheduled - System.currentTimeMillis();
+								if (scheduled >= end) {
+									break;
+								}
+								if (wait > 0) {
+									try {
+										Thread.sleep(wait);
+									} catch (InterruptedException ie) {
+										break;
+									}
+								}
+							} else {
+								scheduled = System.currentTimeMillis();
+								if (scheduled >= end) {
+									break;
+								}
+							}
+							try {
+								ct.submit(captcha);
+								submits.incrementAndGet();
+								if (count == latencies.length) {
+									latencies = Arrays.copyOf(latencies, count * 2);
+								}
+								latencies[count++] = System.currentTimeMillis() - scheduled;
+							} catch (Exception e) {
+								errors.incrementAndGet();
+							}
+						}
+						samples.add(Arrays.copyOf(latencies, count));
+						if (threads.isCurrentThreadCpuTimeSupported()) {
+							cpuNanos.addAndGet(threads.getCurrentThreadCpuTime());
+						}
+					}
+				};
+				workers[i].setDaemon(true);
+				workers[i].start();
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} finally {
+			if (_captcha == null) {
+				captcha.delete();
+			}
+		}
+
+		Report report = new Report();
+		report.elapsedMillis = System.currentTimeMillis() - start;
+		report.submits = submits.get();
+		report.errors = errors.get();
+		int total = 0;
+		for (long[] s : samples) {
+			total += s.length;
+		}
+		report.latencies = new long[total];
+		int pos = 0;
+		for (long[] s : samples) {
+			System.arraycopy(s, 0, report.latencies, pos, s.length);
+			pos += s.length;
+		}
+		Arrays.sort(report.latencies);
+		report.cpuMillis = cpuNanos.get() / 1000000;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				report.peakHeapBytes += pool.getPeakUsage().getUsed();
+			}
+		}
+		report.peakThreads = threads.getPeakThreadCount();
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, gc.getCollectionCount());
+			gcMillis += Math.max(0, gc.getCollectionTime());
+		}
+		report.gcCount = gcCount;
+		report.gcMillis = gcMillis;
+		return report;
+	}
+
+	private File generateCaptcha()
+		throws IOException
+	{
+		File file = File.createTempFile("captchatrader-loadgen", ".png");
+		byte[] data = new byte[_captchaBytes];
+		new Random().nextBytes(data);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		double rate = args.length > 0 ? Double.parseDouble(args[0]) : 12000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 30;
+		long solveMillis = args.length > 3 ? Long.parseLong(args[3]) : 500;
+
+		CaptchaTraderSimulator sim = new CaptchaTraderSimulator()
+			.setSolveLatency(CaptchaTraderSimulator.Latency.logNormal(solveMillis, 0.5))
+			.start();
+		try {
+			Report report = new CaptchaTraderLoadGenerator(sim.getBaseUrl())
+				.setThreads(threads)
+				.setRatePerMinute(rate)
+				.setDuration(seconds * 1000)
+				.run();
+			System.out.println(report);
+		} finally {
+			sim.stop();
+		}
+	}
+}
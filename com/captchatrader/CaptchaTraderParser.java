@@ -22,14 +22,19 @@
  * @author CaptchaTrader
  */
 package com.captchatrader;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Node;
 import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 import java.io.File;
 
 /**
@@ -61,63 +66,128 @@ enum XmlTag {
 
 class CaptchaTraderParser
 {
+	/**
+	 * Builders are costly to look up and create but not thread-safe, so each reply borrows one from
+	 * this pool and returns it. A pool rather than one per thread lets init() create them ahead of time
+	 * for whichever threads end up parsing, including the short-lived threads of asynchronous jobs.
+	 */
+	private static final ConcurrentLinkedQueue<DocumentBuilder> _builders = new ConcurrentLinkedQueue<DocumentBuilder>();
+
+	/**
+	 * Fails on malformed replies without the default handler's report to stderr.
+	 */
+	private static final DefaultHandler QUIET = new DefaultHandler();
+
 	private String[] _responses = null;
 
+	/**
+	 * Create document builders ahead of the first replies.
+	 * @param builders The number of replies that may be parsed at once without creating another builder.
+	 */
+	static void init(int builders)
+	{
+		for (int i = _builders.size(); i < builders; i++) {
+			_builders.offer(newBuilder());
+		}
+	}
+
+	private static DocumentBuilder newBuilder()
+	{
+		try {
+			return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		} catch (ParserConfigurationException pce) {
+			throw new IllegalStateException(pce);
+		}
+	}
+
+	/**
+	 * Parse a reply.
+	 * @param in The reply body.
+	 * @param respSize The number of values the reply carries.
+	 * @throws IOException If the reply could not be read.
+	 * @throws CaptchaTraderException If the reply is not one the API sends; retryable, since it says
+	 * the host or something in front of it is failing rather than that the call was wrong.
+	 */
 	public CaptchaTraderParser(InputStream in, int respSize)
+		throws IOException, CaptchaTraderException
 	{
 		_responses = new String[respSize];
 
+		DocumentBuilder dBuilder = _builders.poll();
+		if (dBuilder == null) {
+			dBuilder = newBuilder();
+		}
+		Element elem;
 		try {
-			DocumentBuilder dBuilder =
-				DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			dBuilder.reset();
+			dBuilder.setErrorHandler(QUIET);
 			Document doc = dBuilder.parse(in);
-			Element elem = doc.getDocumentElement();
-			elem.normalize();
-
-			String rootTag = elem.getNodeName();
-
-			// ERROR
-			if (XmlTag.ERROR.tag().equals(rootTag)) {
-				_responses = new String[3];
-				_responses[0] = "-1";
-				_responses[1] = elem.getTextContent();
-				_responses[2] = elem.getAttribute(XmlTag.STATUS.tag());
-
-				// ENQUEUE, SUBMIT
-			} else if (XmlTag.JOB.tag().equals(rootTag)) {
-				_responses[0] = elem.getAttribute(XmlTag.ID.tag());
-				if (elem.getElementsByTagName(XmlTag.CHALLENGE.tag()).item(0)!=null) {
-					_responses[1] = elem.getElementsByTagName(XmlTag.CHALLENGE.tag()).item(0).getTextContent();
-				}
-				if (elem.getElementsByTagName(XmlTag.RESPONSE.tag()).item(0)!=null) {
-					_responses[1] = elem.getElementsByTagName(XmlTag.RESPONSE.tag()).item(0).getTextContent();
-				}
-				// DEQUEUE, RESPOND, ANSWER
-			} else if (XmlTag.SUCCESS.tag().equals(rootTag)) {
-				_responses[0] = elem.getTextContent();
-
-				// GET CREDITS
-			} else if (XmlTag.USER.tag().equals(rootTag)) {
-				_responses[0] = "0";
-				_responses[1] = elem.getElementsByTagName(XmlTag.CREDITS.tag()).item(0).getTextContent();
-
-				// GET WAIT TIME
-			} else if (XmlTag.QUEUE.tag().equals(rootTag)) {
-				_responses[0] = elem.getElementsByTagName(XmlTag.POSITION.tag()).item(0).getTextContent();
-				_responses[1] = elem.getElementsByTagName(XmlTag.LENGTH.tag()).item(0).getTextContent();
-				_responses[2] = elem.getElementsByTagName(XmlTag.ETA.tag()).item(0).getTextContent();
-
-				// SUBMIT
-			} else if (XmlTag.QUEUE.tag().equals(rootTag)) {
-				_responses[0] = elem.getElementsByTagName(XmlTag.POSITION.tag()).item(0).getTextContent();
-				_responses[1] = elem.getElementsByTagName(XmlTag.LENGTH.tag()).item(0).getTextContent();
-				_responses[2] = elem.getElementsByTagName(XmlTag.ETA.tag()).item(0).getTextContent();
+			elem = doc.getDocumentElement();
+		} catch (SAXException se) {
+			throw malformed(se.getMessage());
+		} finally {
+			_builders.offer(dBuilder);
+		}
+		elem.normalize();
+
+		String rootTag = elem.getNodeName();
+
+		// ERROR
+		if (XmlTag.ERROR.tag().equals(rootTag)) {
+			_responses = new String[3];
+			_responses[0] = "-1";
+			_responses[1] = elem.getTextContent();
+			_responses[2] = elem.getAttribute(XmlTag.STATUS.tag());
+
+			// ENQUEUE, SUBMIT
+		} else if (XmlTag.JOB.tag().equals(rootTag)) {
+			_responses[0] = elem.getAttribute(XmlTag.ID.tag());
+			if (_responses[0].length() == 0) {
+				throw malformed("job without an id");
+			}
+			if (elem.getElementsByTagName(XmlTag.CHALLENGE.tag()).item(0)!=null) {
+				_responses[1] = elem.getElementsByTagName(XmlTag.CHALLENGE.tag()).item(0).getTextContent();
+			}
+			if (elem.getElementsByTagName(XmlTag.RESPONSE.tag()).item(0)!=null) {
+				_responses[1] = elem.getElementsByTagName(XmlTag.RESPONSE.tag()).item(0).getTextContent();
 			}
-		} catch(Exception e) {
-			System.out.println(e.toString());
+			// DEQUEUE, RESPOND, ANSWER
+		} else if (XmlTag.SUCCESS.tag().equals(rootTag)) {
+			_responses[0] = elem.getTextContent();
+
+			// GET CREDITS
+		} else if (XmlTag.USER.tag().equals(rootTag)) {
+			_responses[0] = "0";
+			_responses[1] = text(elem, XmlTag.CREDITS);
+
+			// GET WAIT TIME
+		} else if (XmlTag.QUEUE.tag().equals(rootTag)) {
+			_responses[0] = text(elem, XmlTag.POSITION);
+			_responses[1] = text(elem, XmlTag.LENGTH);
+			_responses[2] = text(elem, XmlTag.ETA);
+		} else {
+			throw malformed("unexpected element " + rootTag);
 		}
 	}
 
+	/**
+	 * @return The text of a child element that the reply must have.
+	 */
+	private static String text(Element elem, XmlTag tag)
+		throws CaptchaTraderException
+	{
+		Node node = elem.getElementsByTagName(tag.tag()).item(0);
+		if (node == null) {
+			throw malformed(elem.getNodeName() + " without " + tag.tag());
+		}
+		return node.getTextContent();
+	}
+
+	private static CaptchaTraderException malformed(String detail)
+	{
+		return new CaptchaTraderException("Malformed reply: " + detail, null, CaptchaTraderErrorType.RETRYABLE);
+	}
+
 	public String[] getResponses()
 	{
 		return _responses;
@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>CaptchaTraderPipeline solves a stream of CAPTCHAs with backpressure. It subscribes to a publisher
+ * of CAPTCHAs, each a File or a URL, and publishes a {@link com.captchatrader.CaptchaTraderResult CaptchaTraderResult}
+ * for each, in completion order.</p>
+ *
+ * <p>It never asks its publisher for more CAPTCHAs than it may have in flight, nor for more than its
+ * subscriber has asked results for. CAPTCHAs requested, being solved and solved but not yet delivered
+ * all count against the in-flight limit, so a fast producer is held back by the solving rate and a slow
+ * consumer holds back both. The in-flight limit defaults to the client's
+ * {@link com.captchatrader.CaptchaTrader#setMaxConcurrentJobs(int) maximum concurrent jobs}.</p>
+ *
+ * <p>A CAPTCHA that fails is published as a result carrying its error; the stream goes on. Only one
+ * subscriber is supported.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    SubmissionPublisher&lt;Object&gt; crawler = new SubmissionPublisher&lt;Object&gt;();
+ *    CaptchaTraderPipeline pipeline = new CaptchaTraderPipeline(ct.setMaxConcurrentJobs(50));
+ *    crawler.subscribe(pipeline);
+ *    pipeline.subscribe(mySubscriber);
+ *    crawler.submit(new File("CAPTCHA.IMAGE"));   // blocks while the pipeline is full
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderPipeline implements Flow.Processor<Object, CaptchaTraderResult>
+{
+	private CaptchaTrader _client;
+	private int _maxInFlight;
+	private ExecutorService _workers;
+
+	private Flow.Subscription _upstream = null;
+	private Flow.Subscriber<? super CaptchaTraderResult> _downstream = null;
+	/**
+	 * CAPTCHAs requested from upstream that have not arrived yet.
+	 */
+	private long _requested = 0;
+	private int _solving = 0;
+	private ArrayDeque<CaptchaTraderResult> _solved = new ArrayDeque<CaptchaTraderResult>();
+	/**
+	 * Results requested by downstream that have not been delivered yet.
+	 */
+	private long _demand = 0;
+	private boolean _upstreamDone = false;
+	private Throwable _upstreamError = null;
+	private boolean _cancelled = false;
+	private Throwable _failure = null;
+	private boolean _terminated = false;
+	private boolean _draining = false;
+
+	/**
+	 * Create a pipeline with the client's concurrent job limit, or 16 if it has none.
+	 * @param client The client to submit CAPTCHAs with.
+	 */
+	public CaptchaTraderPipeline(CaptchaTrader client)
+	{
+		this(client, client.getMaxConcurrentJobs() > 0 ? client.getMaxConcurrentJobs() : 16);
+	}
+
+	/**
+	 * Create a pipeline.
+	 * @param client The client to submit CAPTCHAs with.
+	 * @param maxInFlight The most CAPTCHAs requested, being solved or awaiting delivery at once.
+	 */
+	public CaptchaTraderPipeline(CaptchaTrader client, int maxInFlight)
+	{
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		_client = client;
+		_maxInFlight = maxInFlight;
+		final AtomicInteger count = new AtomicInteger();
+		_workers = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "captchatrader-pipeline-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void subscribe(Flow.Subscriber<? super CaptchaTraderResult> subscriber)
+	{
+		boolean accepted;
+		synchronized (this) {
+			accepted = _downstream == null;
+			if (accepted) {
+				_downstream = subscriber;
+			}
+		}
+		if (!accepted) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {}
+				public void cancel() {}
+			});
+			subscriber.onError(new IllegalStateException("CaptchaTraderPipeline supports only one subscriber"));
+			return;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n)
+			{
+				if (n <= 0) {
+					fail(new IllegalArgumentException("Demand must be positive, got " + n));
+					return;
+				}
+				synchronized (CaptchaTraderPipeline.this) {
+					_demand = _demand + n < 0 ? Long.MAX_VALUE : _demand + n;
+				}
+				drain();
+			}
+			public void cancel()
+			{
+				Flow.Subscription upstream;
+				synchronized (CaptchaTraderPipeline.this) {
+					_cancelled = true;
+					_solved.clear();
+					upstream = _upstream;
+				}
+				if (upstream != null) {
+					upstream.cancel();
+				}
+				_workers.shutdown();
+			}
+		});
+		drain();
+	}
+
+	public void onSubscribe(Flow.Subscription subscription)
+	{
+		boolean accepted;
+		synchronized (this) {
+			accepted = _upstream == null && !_cancelled;
+			if (accepted) {
+				_upstream = subscription;
+			}
+		}
+		if (!accepted) {
+			subscription.cancel();
+			return;
+		}
+		drain();
+	}
+
+	public void onNext(final Object captcha)
+	{
+		synchronized (this) {
+			if (_cancelled) {
+				return;
+			}
+			_requested--;
+			_solving++;
+		}
+		final long start = System.currentTimeMillis();
+		_workers.execute(new Runnable() {
+			public void run()
+			{
+				CaptchaTraderResult result;
+				try {
+					String[] response = _client.submitCaptcha(captcha);
+					result = new CaptchaTraderResult(captcha, response[0], response[1],
+													 System.currentTimeMillis() - start, null);
+				} catch (Throwable t) {
+					result = new CaptchaTraderResult(captcha, null, null,
+													 System.currentTimeMillis() - start, t);
+				}
+				synchronized (CaptchaTraderPipeline.this) {
+					_solving--;
+					if (!_cancelled) {
+						_solved.add(result);
+					}
+				}
+				drain();
+			}
+		});
+	}
+
+	public void onError(Throwable throwable)
+	{
+		synchronized (this) {
+			_upstreamDone = true;
+			_upstreamError = throwable;
+		}
+		drain();
+	}
+
+	public void onComplete()
+	{
+		synchronized (this) {
+			_upstreamDone = true;
+		}
+		drain();
+	}
+
+	/**
+	 * @return The number of CAPTCHAs currently being solved.
+	 */
+	public synchronized int getSolving()
+	{
+		return _solving;
+	}
+
+	/**
+	 * @return The number of solved CAPTCHAs waiting for the subscriber to ask for them.
+	 */
+	public synchronized int getBuffered()
+	{
+		return _solved.size();
+	}
+
+	/**
+	 * Terminate the stream with an error, once any delivery in progress is done.
+	 */
+	private void fail(Throwable t)
+	{
+		Flow.Subscription upstream;
+		synchronized (this) {
+			if (_failure != null || _terminated) {
+				return;
+			}
+			_failure = t;
+			_solved.clear();
+			upstream = _upstream;
+		}
+		if (upstream != null) {
+			upstream.cancel();
+		}
+		drain();
+	}
+
+	/**
+	 * Deliver results that are asked for, ask upstream for what there is room for, and pass on termination.
+	 * Each step is decided on the current state under the lock and carried out outside it. Only one thread
+	 * drains at a time, so the subscriber is never called concurrently; a thread that finds another one
+	 * draining leaves its change to be picked up by that thread's next step.
+	 */
+	private void drain()
+	{
+		synchronized (this) {
+			if (_draining) {
+				return;
+			}
+			_draining = true;
+		}
+		while (true) {
+			CaptchaTraderResult next = null;
+			long credit = 0;
+			boolean terminate = false;
+			Throwable error = null;
+			Flow.Subscriber<? super CaptchaTraderResult> downstream;
+			Flow.Subscription upstream;
+			synchronized (this) {
+				downstream = _downstream;
+				upstream = _upstream;
+				if (_terminated || downstream == null || (_cancelled && _failure == null)) {
+					_draining = false;
+					return;
+				}
+				if (_failure != null) {
+					terminate = true;
+					error = _failure;
+				} else if (_demand > 0 && !_solved.isEmpty()) {
+					next = _solved.poll();
+					_demand--;
+				} else if (_upstreamDone && _solving == 0 && _solved.isEmpty()) {
+					terminate = true;
+					error = _upstreamError;
+				} else if (!_upstreamDone && upstream != null) {
+					long pending = _requested + _solving + _solved.size();
+					credit = Math.min(_maxInFlight, _demand) - pending;
+					if (credit > 0) {
+						_requested += credit;
+					}
+				}
+				if (terminate) {
+					_terminated = true;
+				} else if (next == null && credit <= 0) {
+					_draining = false;
+					return;
+				}
+			}
+			if (next != null) {
+				downstream.onNext(next);
+			} else if (terminate) {
+				_workers.shutdown();
+				if (error != null) {
+					downstream.onError(error);
+				} else {
+					downstream.onComplete();
+				}
+				return;
+			} else {
+				upstream.request(credit);
+			}
+		}
+	}
+}
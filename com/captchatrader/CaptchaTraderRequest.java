@@ -36,6 +36,15 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @version 2012.1
@@ -43,15 +52,65 @@ import java.io.InputStreamReader;
 class CaptchaTraderRequest
 {
 	private URLConnection _urlConnection;
-	private OutputStream _os = null;
+	/**
+	 * The multipart body of a POST request: byte arrays held in memory and files streamed from disk when sent.
+	 * Keeping the parts lets the exact Content-Length be known before anything is sent.
+	 */
+	private List<Object> _body = null;
+	/**
+	 * The bytes written since the last file part.
+	 */
+	private ByteArrayOutputStream _chunk = null;
 	private URL _url = null;
+	private CaptchaTraderRequestType _type;
+	private String _baseUrl;
+	private CaptchaTraderImageProcessor _imageProcessor = null;
+	private boolean _compressParameters = false;
+	private boolean _acceptsCompression = false;
+	private volatile boolean _aborted = false;
+
+	/**
+	 * Text parameters at least this many bytes long are compressed when parameter compression is on.
+	 * Shorter ones would not get smaller.
+	 */
+	static final int COMPRESS_THRESHOLD = 512;
+
+	/**
+	 * A file to be streamed from disk, with its length when the parameter was set.
+	 */
+	private static class FilePart
+	{
+		File file;
+		long length;
+		FilePart(File file)
+		{
+			this.file = file;
+			this.length = file.length();
+		}
+	}
 
 	protected void write(String s)
 		throws IOException
 	{
-		if (_os!=null) {
-			_os.write(s.getBytes());
+		write(s.getBytes());
+	}
+
+	private void write(byte[] data)
+	{
+		if (_chunk!=null) {
+			_chunk.write(data, 0, data.length);
+		}
+	}
+
+	private void write(File file)
+		throws IOException
+	{
+		if (!file.isFile()) {
+			throw new IOException("Cannot read " + file);
 		}
+		_body.add(_chunk.toByteArray());
+		_body.add(new FilePart(file));
+		_chunk.reset();
 	}
 
 	protected void newline()
@@ -81,41 +140,134 @@ class CaptchaTraderRequest
 		write(boundary);
 	}
 
-	private void connectionInit(CaptchaTraderRequestType type)
-		throws IOException
-	{
-		connectionInit(type, null, null);
-	}
-
-	private void connectionInit(CaptchaTraderRequestType type, String username, String password)
+	private void connectionInit(String baseUrl, CaptchaTraderRequestType type, String username, String password)
 		throws IOException
 	{
+		_type = type;
+		_baseUrl = baseUrl;
 		String param = (type.doPost()||username==null||password==null) ? "" : "/username:" + username + "/password:" + password;
-		_url = new URL(type.url() + param + ".xml");
+		_url = new URL(type.url(baseUrl) + param + ".xml");
 		if (type.doPost()) {
-			_urlConnection = _url.openConnection();
-			_urlConnection.setDoOutput(type.doPost());
-			_urlConnection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-			_os = _urlConnection.getOutputStream();
+			_body = new ArrayList<Object>();
+			_chunk = new ByteArrayOutputStream();
 		}
 	}
 
 	public CaptchaTraderRequest()
 		throws IOException
 	{
-		connectionInit(CaptchaTraderRequestType.SUBMIT);
+		this(CaptchaTraderRequestType.SUBMIT);
 	}
 
 	public CaptchaTraderRequest(CaptchaTraderRequestType type)
 		throws IOException
 	{
-		connectionInit(type);
+		this(CaptchaTraderEndpoints.DEFAULT_BASE_URL, type);
 	}
 
 	public CaptchaTraderRequest(CaptchaTraderRequestType type, String username, String password)
 		throws IOException
 	{
-		connectionInit(type, username, password);
+		this(CaptchaTraderEndpoints.DEFAULT_BASE_URL, type, username, password);
+	}
+
+	public CaptchaTraderRequest(String baseUrl, CaptchaTraderRequestType type)
+		throws IOException
+	{
+		connectionInit(baseUrl, type, null, null);
+	}
+
+	public CaptchaTraderRequest(String baseUrl, CaptchaTraderRequestType type, String username, String password)
+		throws IOException
+	{
+		connectionInit(baseUrl, type, username, password);
+	}
+
+	/**
+	 * Shrink file parameters with the given processor before they are written.
+	 */
+	public void setImageProcessor(CaptchaTraderImageProcessor imageProcessor)
+	{
+		_imageProcessor = imageProcessor;
+	}
+
+	/**
+	 * Send long text parameters gzip compressed. Only for API hosts that accept compressed parts.
+	 */
+	public void setCompressParameters(boolean compressParameters)
+	{
+		_compressParameters = compressParameters;
+	}
+
+	/**
+	 * @return Whether the reply advertised that the API host accepts gzip compressed content.
+	 */
+	public boolean acceptsCompression()
+	{
+		return _acceptsCompression;
+	}
+
+	/**
+	 * Abort the request from another thread, closing its connection so that a thread blocked sending
+	 * or waiting for the reply fails right away.
+	 */
+	public void abort()
+	{
+		URLConnection connection;
+		synchronized (this) {
+			_aborted = true;
+			connection = _urlConnection;
+		}
+		if (connection instanceof HttpURLConnection) {
+			((HttpURLConnection) connection).disconnect();
+		}
+	}
+
+	/**
+	 * @return Whether the request has been aborted.
+	 */
+	public boolean isAborted()
+	{
+		return _aborted;
+	}
+
+	/**
+	 * Open the connection, unless the request has been aborted.
+	 */
+	private synchronized URLConnection open()
+		throws IOException
+	{
+		if (_aborted) {
+			throw new IOException("Request aborted");
+		}
+		_urlConnection = _url.openConnection();
+		return _urlConnection;
+	}
+
+	/**
+	 * Connect, then check that the request was not aborted before there was a connection to close.
+	 */
+	private void connect()
+		throws IOException
+	{
+		_urlConnection.connect();
+		if (_aborted) {
+			abort();
+			throw new IOException("Request aborted");
+		}
+	}
+
+	public CaptchaTraderRequestType type()
+	{
+		return _type;
+	}
+
+	/**
+	 * @return The API host this request is sent to.
+	 */
+	public String baseUrl()
+	{
+		return _baseUrl;
 	}
 
 	private void writeName(String name)
@@ -132,34 +284,103 @@ class CaptchaTraderRequest
 	{
 		boundary();
 		writeName(name);
+		if (_compressParameters && _chunk != null) {
+			byte[] data = value.getBytes();
+			if (data.length >= COMPRESS_THRESHOLD) {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length / 2);
+				GZIPOutputStream gz = new GZIPOutputStream(buf);
+				gz.write(data);
+				gz.close();
+				newline();
+				write("Content-Encoding: gzip");
+				newline(); newline();
+				write(buf.toByteArray());
+				newline();
+				return;
+			}
+		}
 		newline(); newline();
 		writeln(value);
 	}
 
-	private static void pipe(InputStream in, OutputStream out)
+	/**
+	 * Copy exactly the given number of bytes, failing if the input has fewer.
+	 */
+	private static void pipe(InputStream in, OutputStream out, long length)
 		throws IOException
 	{
-		byte[] buf = new byte[500000];
+		byte[] buf = new byte[(int) Math.min(65536, Math.max(1, length))];
 		int nread;
-		synchronized (in) {
-			while((nread = in.read(buf, 0, buf.length)) >= 0) {
-				out.write(buf, 0, nread);
-			}
+		while (length > 0 && (nread = in.read(buf, 0, (int) Math.min(buf.length, length))) >= 0) {
+			out.write(buf, 0, nread);
+			length -= nread;
+		}
+		if (length > 0) {
+			throw new IOException("File shrank while being uploaded");
 		}
-		out.flush();
-		buf = null;
 	}
 
 	public void setParameter(String name, File file)
 		throws IOException
 	{
-		if (_os==null) {
+		if (_body==null) {
 			throw new IOException("Request type initialized does not support file uploading");
 		}
 
 		String filename = file.getPath();
-		FileInputStream is = new FileInputStream(file);
+		if (_imageProcessor != null) {
+			byte[] image = _imageProcessor.process(file);
+			if (image != null) {
+				int dot = filename.lastIndexOf('.');
+				if (dot > filename.lastIndexOf(File.separatorChar)) {
+					filename = filename.substring(0, dot);
+				}
+				writeFile(name, filename + "." + _imageProcessor.getFormat(), image);
+				return;
+			}
+		}
+		writeFileHeader(name, filename);
+		write(file);
+		newline();
+	}
 
+	/**
+	 * Write a file parameter whose content is already in memory, shrinking it first if an image processor is set.
+	 * @param name The parameter name.
+	 * @param filename The filename sent along, from which the content type is guessed.
+	 * @param data The file content.
+	 */
+	public void setParameter(String name, String filename, byte[] data)
+		throws IOException
+	{
+		if (_body==null) {
+			throw new IOException("Request type initialized does not support file uploading");
+		}
+		if (_imageProcessor != null) {
+			byte[] image = _imageProcessor.process(data);
+			if (image != null) {
+				int dot = filename.lastIndexOf('.');
+				if (dot >= 0) {
+					filename = filename.substring(0, dot);
+				}
+				data = image;
+				filename = filename + "." + _imageProcessor.getFormat();
+			}
+		}
+		writeFile(name, filename, data);
+	}
+
+	private void writeFile(String name, String filename, byte[] data)
+		throws IOException
+	{
+		writeFileHeader(name, filename);
+		write(data);
+		newline();
+	}
+
+	private void writeFileHeader(String name, String filename)
+		throws IOException
+	{
 		boundary();
 		writeName(name);
 		write("; filename=\"");
@@ -167,14 +388,12 @@ class CaptchaTraderRequest
 		write("\"");
 		newline();
 		write("Content-Type: ");
-		String type = _urlConnection.guessContentTypeFromName(filename);
+		String type = URLConnection.guessContentTypeFromName(filename);
 		if (type == null) {
 			type = "application/octet-stream";
 		}
 		writeln(type);
 		newline();
-		pipe(is, _os);
-		newline();
 	}
 
 	public void setParameter(String name, Object object)
@@ -190,38 +409,114 @@ class CaptchaTraderRequest
 	public BufferedReader post()
 		throws IOException
 	{
-		if (_os==null) {
-			throw new IOException("Request type does not support POST");
-		}
-		boundary();
-		writeln("--");
-		_os.close();
-
-		return new BufferedReader(new InputStreamReader(_urlConnection.getInputStream()));
+		return new BufferedReader(new InputStreamReader(doPost()));
 	}
 
+	/**
+	 * Send the body with a Content-Length computed from its parts, streaming files straight to the
+	 * connection instead of letting HttpURLConnection buffer the whole body first.
+	 */
 	public InputStream doPost()
 		throws IOException
 	{
-		if (_os==null) {
+		if (_body==null) {
 			throw new IOException("Request type does not support POST");
 		}
 		boundary();
 		writeln("--");
-		_os.close();
+		_body.add(_chunk.toByteArray());
+		_chunk = null;
+
+		long length = 0;
+		for (Object part : _body) {
+			length += part instanceof FilePart ? ((FilePart) part).length : ((byte[]) part).length;
+		}
 
-		return _urlConnection.getInputStream();
+		open();
+		_urlConnection.setDoOutput(true);
+		_urlConnection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+		_urlConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		if (_urlConnection instanceof HttpURLConnection) {
+			((HttpURLConnection) _urlConnection).setFixedLengthStreamingMode(length);
+		}
+		connect();
+		OutputStream os = _urlConnection.getOutputStream();
+		try {
+			for (Object part : _body) {
+				if (part instanceof FilePart) {
+					FilePart filePart = (FilePart) part;
+					InputStream is = new FileInputStream(filePart.file);
+					try {
+						pipe(is, os, filePart.length);
+					} finally {
+						is.close();
+					}
+				} else {
+					os.write((byte[]) part);
+				}
+			}
+		} finally {
+			os.close();
+		}
+		_body = null;
+
+		return response();
 	}
 
 	public BufferedReader get()
 		throws IOException
 	{
-		return new BufferedReader(new InputStreamReader(_url.openConnection().getInputStream()));
+		return new BufferedReader(new InputStreamReader(doGet()));
 	}
 
 	public InputStream doGet()
 		throws IOException
 	{
-		return _url.openConnection().getInputStream();
+		open();
+		_urlConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		connect();
+		return response();
+	}
+
+	/**
+	 * Read the reply, decompressing it on the fly as it is parsed.
+	 */
+	private InputStream response()
+		throws IOException
+	{
+		InputStream in = _urlConnection.getInputStream();
+		String acceptEncoding = _urlConnection.getHeaderField("Accept-Encoding");
+		_acceptsCompression = acceptEncoding != null && acceptEncoding.toLowerCase().indexOf("gzip") >= 0;
+
+		String encoding = _urlConnection.getContentEncoding();
+		if (encoding == null) {
+			return in;
+		}
+		encoding = encoding.trim().toLowerCase();
+		if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+			return new GZIPInputStream(in);
+		}
+		if ("deflate".equals(encoding)) {
+			// deflate should carry a zlib header, but some servers send a raw stream
+			PushbackInputStream pin = new PushbackInputStream(new BufferedInputStream(in), 2);
+			int b0 = pin.read(), b1 = pin.read();
+			if (b1 >= 0) {
+				pin.unread(b1);
+			}
+			if (b0 >= 0) {
+				pin.unread(b0);
+			}
+			boolean zlib = b0 >= 0 && b1 >= 0 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+			final Inflater inflater = new Inflater(!zlib);
+			return new InflaterInputStream(pin, inflater) {
+				public void close()
+					throws IOException
+				{
+					super.close();
+					inflater.end();
+				}
+			};
+		}
+		return in;
 	}
 }
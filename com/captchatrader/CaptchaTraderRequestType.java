@@ -30,27 +30,47 @@ package com.captchatrader;
  */
 public enum CaptchaTraderRequestType
 {
-	SUBMIT           ("http://api.captchatrader.com/submit",        true,  2),
-	RESPOND          ("http://api.captchatrader.com/respond",       true,  1),
-	QUERY_CREDIT     ("http://api.captchatrader.com/get_credits",   false, 2),
-	QUERY_WAIT_TIME  ("http://api.captchatrader.com/get_wait_time", false, 3),
-	ENQUEUE          ("http://api.captchatrader.com/enqueue",       false, 2),
-	ANSWER           ("http://api.captchatrader.com/answer",        true,  1),
-	DEQUEUE          ("http://api.captchatrader.com/dequeue",       true,  1);
+	SUBMIT           ("/submit",        true,  2),
+	RESPOND          ("/respond",       true,  1),
+	QUERY_CREDIT     ("/get_credits",   false, 2),
+	QUERY_WAIT_TIME  ("/get_wait_time", false, 3),
+	ENQUEUE          ("/enqueue",       false, 2),
+	ANSWER           ("/answer",        true,  1),
+	DEQUEUE          ("/dequeue",       true,  1);
 
-	private String _url;
+	private String _path;
 	private boolean _doPost;
 	private int _respSize;
-	CaptchaTraderRequestType(String url, boolean doPost, int respSize)
+	CaptchaTraderRequestType(String path, boolean doPost, int respSize)
 	{
-		_url = url;
+		_path = path;
 		_doPost = doPost;
 		_respSize = respSize;
 	}
 
+	/**
+	 * @return The URL of this call on the default API host.
+	 */
 	public String url()
 	{
-		return _url;
+		return url(CaptchaTraderEndpoints.DEFAULT_BASE_URL);
+	}
+
+	/**
+	 * @param baseUrl The scheme, host and optional port of an API host, e.g. http://api.captchatrader.com
+	 * @return The URL of this call on the given API host.
+	 */
+	public String url(String baseUrl)
+	{
+		return baseUrl + _path;
+	}
+
+	/**
+	 * @return The path of this call, relative to the API host.
+	 */
+	public String path()
+	{
+		return _path;
 	}
 
 	public boolean doPost()
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+/**
+ * The outcome of one CAPTCHA submission: the answer and ticket on success, or the error on failure.
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderResult
+{
+	private Object _captcha;
+	private String _ticket;
+	private String _answer;
+	private long _latencyMillis;
+	private Throwable _error;
+
+	CaptchaTraderResult(Object captcha, String ticket, String answer, long latencyMillis, Throwable error)
+	{
+		_captcha = captcha;
+		_ticket = ticket;
+		_answer = answer;
+		_latencyMillis = latencyMillis;
+		_error = error;
+	}
+
+	/**
+	 * @return The CAPTCHA that was submitted, as given.
+	 */
+	public Object getCaptcha()
+	{
+		return _captcha;
+	}
+
+	/**
+	 * @return The ticket id of the job, for responding to it, or null if the submission failed.
+	 */
+	public String getTicket()
+	{
+		return _ticket;
+	}
+
+	/**
+	 * @return The decoded CAPTCHA, or null if the submission failed.
+	 */
+	public String getAnswer()
+	{
+		return _answer;
+	}
+
+	/**
+	 * @return The milliseconds from accepting the CAPTCHA to the answer or failure.
+	 */
+	public long getLatencyMillis()
+	{
+		return _latencyMillis;
+	}
+
+	/**
+	 * @return The reason the submission failed, or null if it succeeded.
+	 */
+	public Throwable getError()
+	{
+		return _error;
+	}
+
+	/**
+	 * @return Whether the CAPTCHA was decoded.
+	 */
+	public boolean isSuccess()
+	{
+		return _error == null;
+	}
+
+	public String toString()
+	{
+		return _error == null
+			? "ticket " + _ticket + ": " + _answer + " (" + _latencyMillis + "ms)"
+			: "failed: " + _error + " (" + _latencyMillis + "ms)";
+	}
+}
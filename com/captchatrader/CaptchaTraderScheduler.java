@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>CaptchaTraderScheduler queues CAPTCHAs locally and submits them in order of priority, and within
+ * a priority earliest deadline first, on a fixed number of worker threads.</p>
+ *
+ * <p>A CAPTCHA whose deadline can no longer be met, because the time left is shorter than the expected
+ * solve time, is dropped without being submitted so it does not cost credits; its task fails with a
+ * {@link com.captchatrader.CaptchaTraderException CaptchaTraderException}. The expected solve time starts
+ * at {@link #setExpectedSolveTime(long) a configured value} and follows a moving average of actual solves.
+ * Queued CAPTCHAs are checked regularly, so hopeless ones fail early rather than when they reach the head.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderScheduler scheduler = new CaptchaTraderScheduler(ct, 20);
+ *    // a live user session that expires in 60 seconds
+ *    CaptchaTraderTask&lt;CaptchaTraderResult&gt; live =
+ *        scheduler.schedule(captcha, 10, System.currentTimeMillis() + 60000);
+ *    // a background crawl
+ *    CaptchaTraderTask&lt;CaptchaTraderResult&gt; crawl = scheduler.schedule(other, 0, 0);
+ *    System.out.println(live.getResponse().getAnswer());
+ *    System.out.println(scheduler.getStats(10));
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderScheduler
+{
+	/**
+	 * Queueing statistics of one priority class.
+	 */
+	public static class Stats
+	{
+		long scheduled;
+		long submitted;
+		long dropped;
+		long totalWaitMillis;
+		long maxWaitMillis;
+
+		/**
+		 * @return The number of CAPTCHAs scheduled.
+		 */
+		public long getScheduled() { return scheduled; }
+		/**
+		 * @return The number of CAPTCHAs taken from the queue and submitted.
+		 */
+		public long getSubmitted() { return submitted; }
+		/**
+		 * @return The number of CAPTCHAs dropped because their deadline could not be met.
+		 */
+		public long getDropped() { return dropped; }
+		/**
+		 * @return The mean time submitted CAPTCHAs spent queued, in milliseconds.
+		 */
+		public double getMeanWaitMillis() { return submitted == 0 ? 0 : (double) totalWaitMillis / submitted; }
+		/**
+		 * @return The longest time a submitted CAPTCHA spent queued, in milliseconds.
+		 */
+		public long getMaxWaitMillis() { return maxWaitMillis; }
+
+		Stats copy()
+		{
+			Stats copy = new Stats();
+			copy.scheduled = scheduled;
+			copy.submitted = submitted;
+			copy.dropped = dropped;
+			copy.totalWaitMillis = totalWaitMillis;
+			copy.maxWaitMillis = maxWaitMillis;
+			return copy;
+		}
+
+		public String toString()
+		{
+			return "scheduled=" + scheduled + " submitted=" + submitted + " dropped=" + dropped
+				+ " meanWait=" + Math.round(getMeanWaitMillis()) + "ms maxWait=" + maxWaitMillis + "ms";
+		}
+	}
+
+	private class Job implements Comparable<Job>, Callable<CaptchaTraderResult>
+	{
+		Object captcha;
+		int priority;
+		long deadline;
+		long seq;
+		long enqueued;
+		boolean dropped;
+		CaptchaTraderTask<CaptchaTraderResult> task;
+
+		public int compareTo(Job other)
+		{
+			if (priority != other.priority) {
+				return priority > other.priority ? -1 : 1;
+			}
+			long d1 = deadline == 0 ? Long.MAX_VALUE : deadline;
+			long d2 = other.deadline == 0 ? Long.MAX_VALUE : other.deadline;
+			if (d1 != d2) {
+				return d1 < d2 ? -1 : 1;
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+
+		boolean hopeless(long now)
+		{
+			return deadline != 0 && now + expectedSolveTime() > deadline;
+		}
+
+		public CaptchaTraderResult call()
+			throws Exception
+		{
+			long now = System.currentTimeMillis();
+			if (_shutdown) {
+				throw new CaptchaTraderException("Scheduler has been shut down");
+			}
+			if (dropped || hopeless(now)) {
+				synchronized (CaptchaTraderScheduler.this) {
+					stats(priority).dropped++;
+				}
+				throw new CaptchaTraderException("Deadline can no longer be met");
+			}
+			long wait = now - enqueued;
+			synchronized (CaptchaTraderScheduler.this) {
+				Stats stats = stats(priority);
+				stats.submitted++;
+				stats.totalWaitMillis += wait;
+				stats.maxWaitMillis = Math.max(stats.maxWaitMillis, wait);
+			}
+			String[] response = _client.submitCaptcha(captcha);
+			long solve = System.currentTimeMillis() - now;
+			synchronized (CaptchaTraderScheduler.this) {
+				_expectedSolveTime += _smoothing * (solve - _expectedSolveTime);
+			}
+			return new CaptchaTraderResult(captcha, response[0], response[1], System.currentTimeMillis() - enqueued, null);
+		}
+	}
+
+	private CaptchaTrader _client;
+	private PriorityBlockingQueue<Job> _queue = new PriorityBlockingQueue<Job>();
+	private AtomicLong _seq = new AtomicLong();
+	private TreeMap<Integer, Stats> _stats = new TreeMap<Integer, Stats>();
+	private double _expectedSolveTime = 15000;
+	private double _smoothing = 0.1;
+	private Thread[] _workers;
+	private ScheduledExecutorService _sweeper;
+	private volatile boolean _shutdown = false;
+
+	/**
+	 * Create a scheduler and start its workers.
+	 * @param client The client to submit CAPTCHAs with.
+	 * @param workers The number of CAPTCHAs submitted at once.
+	 */
+	public CaptchaTraderScheduler(CaptchaTrader client, int workers)
+	{
+		_client = client;
+		_workers = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+			_workers[i] = new Thread("captchatrader-scheduler-" + (i + 1)) {
+				public void run()
+				{
+					while (!_shutdown) {
+						try {
+							// poll rather than take so that shutdown() never has to interrupt a worker
+							Job job = _queue.poll(500, TimeUnit.MILLISECONDS);
+							if (job != null) {
+								job.task.run();
+							}
+						} catch (InterruptedException ie) {
+							return;
+						}
+					}
+				}
+			};
+			_workers[i].setDaemon(true);
+			_workers[i].start();
+		}
+		_sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "captchatrader-scheduler-sweep");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				dropHopeless();
+			}
+		}, 500, 500, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Set the solve time assumed before any CAPTCHA has been solved.
+	 * @return This CaptchaTraderScheduler instance.
+	 */
+	public synchronized CaptchaTraderScheduler setExpectedSolveTime(long millis)
+	{
+		_expectedSolveTime = millis;
+		return this;
+	}
+
+	/**
+	 * @return The solve time currently expected when judging deadlines, in milliseconds.
+	 */
+	public synchronized long expectedSolveTime()
+	{
+		return (long) _expectedSolveTime;
+	}
+
+	/**
+	 * Queue a CAPTCHA for submission.
+	 * @param captcha A File or a URL.
+	 * @param priority Higher priorities are submitted first.
+	 * @param deadline The time, in milliseconds since the epoch, by which the answer is needed, or 0 for none.
+	 * @return The task that completes with the result, or fails if the CAPTCHA is dropped.
+	 */
+	public CaptchaTraderTask<CaptchaTraderResult> schedule(Object captcha, int priority, long deadline)
+	{
+		Job job = new Job();
+		job.captcha = captcha;
+		job.priority = priority;
+		job.deadline = deadline;
+		job.seq = _seq.incrementAndGet();
+		job.enqueued = System.currentTimeMillis();
+		job.task = new CaptchaTraderTask<CaptchaTraderResult>(job);
+		synchronized (this) {
+			stats(priority).scheduled++;
+		}
+		_queue.add(job);
+		if (_shutdown && _queue.remove(job)) {
+			job.task.run();
+		}
+		return job.task;
+	}
+
+	/**
+	 * @return The number of CAPTCHAs waiting to be submitted.
+	 */
+	public int getQueued()
+	{
+		return _queue.size();
+	}
+
+	/**
+	 * @return The queueing statistics of the given priority class.
+	 */
+	public synchronized Stats getStats(int priority)
+	{
+		return stats(priority).copy();
+	}
+
+	/**
+	 * @return The priority classes that have been scheduled, from lowest to highest.
+	 */
+	public synchronized List<Integer> getPriorities()
+	{
+		return new ArrayList<Integer>(_stats.keySet());
+	}
+
+	/**
+	 * Stop submitting. Queued CAPTCHAs fail; CAPTCHAs already submitted run to completion,
+	 * after which the workers exit.
+	 */
+	public void shutdown()
+	{
+		_shutdown = true;
+		_sweeper.shutdownNow();
+		Job job;
+		while ((job = _queue.poll()) != null) {
+			job.task.run();
+		}
+	}
+
+	private Stats stats(int priority)
+	{
+		Stats stats = _stats.get(priority);
+		if (stats == null) {
+			stats = new Stats();
+			_stats.put(priority, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Fail queued CAPTCHAs whose deadline can no longer be met.
+	 */
+	private void dropHopeless()
+	{
+		long now = System.currentTimeMillis();
+		List<Job> hopeless = new ArrayList<Job>();
+		for (Iterator<Job> it = _queue.iterator(); it.hasNext(); ) {
+			Job job = it.next();
+			if (job.hopeless(now)) {
+				hopeless.add(job);
+			}
+		}
+		for (Job job : hopeless) {
+			if (_queue.remove(job)) {
+				// the job fails without submitting, even if the expected solve time has dropped since
+				job.dropped = true;
+				job.task.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,549 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+
+package com.captchatrader;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>CaptchaTraderSimulator is an embeddable stand-in for http://api.captchatrader.com, for testing
+ * and capacity planning without spending credits.</p>
+ *
+ * <p>Every {@link com.captchatrader.CaptchaTraderRequestType CaptchaTraderRequestType} endpoint is
+ * served with the XML replies that {@link com.captchatrader.CaptchaTrader CaptchaTrader} expects.
+ * Submitted CAPTCHAs are handed to a configurable number of simulated solvers, each taking a
+ * solve time drawn from a {@link Latency Latency} distribution; submissions that find every
+ * solver busy wait in a queue, which is what {@link com.captchatrader.CaptchaTrader#getWaitTime() getWaitTime()}
+ * and {@link com.captchatrader.CaptchaTrader#getQueueSize() getQueueSize()} report.
+ * Replies are delayed on a timer rather than by holding a thread, so a single simulator sustains
+ * thousands of outstanding submissions.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderSimulator sim = new CaptchaTraderSimulator()
+ *        .setSolveLatency(CaptchaTraderSimulator.Latency.logNormal(8000, 0.5))
+ *        .setSolvers(200)
+ *        .setErrorRate(CaptchaTraderRequestType.SUBMIT, 0.01, "503", "INTERNAL ERROR");
+ *    sim.start();
+ *    CaptchaTrader ct = new CaptchaTrader("APIKEY", "USERNAME", "PASSWORD").setBaseUrl(sim.getBaseUrl());
+ *    // ...
+ *    sim.stop();
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderSimulator
+{
+	/**
+	 * A distribution of simulated delays, in milliseconds.
+	 */
+	public static abstract class Latency
+	{
+		/**
+		 * @return A delay in milliseconds drawn from this distribution.
+		 */
+		public abstract long sample(Random random);
+		/**
+		 * @return The mean delay in milliseconds.
+		 */
+		public abstract double mean();
+
+		/**
+		 * Every delay is exactly the given time.
+		 */
+		public static Latency fixed(final long millis)
+		{
+			return new Latency() {
+				public long sample(Random random) { return millis; }
+				public double mean() { return millis; }
+			};
+		}
+
+		/**
+		 * Delays are spread evenly between min and max.
+		 */
+		public static Latency uniform(final long min, final long max)
+		{
+			return new Latency() {
+				public long sample(Random random) { return min + (long) (random.nextDouble() * (max - min)); }
+				public double mean() { return (min + max) / 2.0; }
+			};
+		}
+
+		/**
+		 * Delays are exponentially distributed with the given mean.
+		 */
+		public static Latency exponential(final double mean)
+		{
+			return new Latency() {
+				public long sample(Random random) { return (long) (-mean * Math.log(1.0 - random.nextDouble())); }
+				public double mean() { return mean; }
+			};
+		}
+
+		/**
+		 * Delays are log-normally distributed around the given median, which matches the long tail of human solvers.
+		 * @param median The median delay in milliseconds.
+		 * @param sigma The standard deviation of the underlying normal distribution.
+		 */
+		public static Latency logNormal(final double median, final double sigma)
+		{
+			return new Latency() {
+				public long sample(Random random) { return (long) (median * Math.exp(sigma * random.nextGaussian())); }
+				public double mean() { return median * Math.exp(sigma * sigma / 2); }
+			};
+		}
+	}
+
+	/**
+	 * An injected failure for one request type, an error element or, without a status, a reply that is not XML.
+	 */
+	private static class Fault
+	{
+		double rate;
+		String status;
+		String message;
+		Fault(double rate, String status, String message)
+		{
+			this.rate = rate;
+			this.status = status;
+			this.message = message;
+		}
+	}
+
+	private HttpServer _server = null;
+	private ScheduledExecutorService _timer = null;
+	private ExecutorService _workers = null;
+	private int _port = 0;
+	private Random _random = new Random();
+	private Latency _solveLatency = Latency.fixed(0);
+	private Latency _networkLatency = Latency.fixed(0);
+	private int _solvers = 0;
+	private int _credits = Integer.MAX_VALUE;
+	private String _answer = "simulated";
+	private boolean _compressReplies = false;
+	private Map<CaptchaTraderRequestType, Fault> _faults =
+		new EnumMap<CaptchaTraderRequestType, Fault>(CaptchaTraderRequestType.class);
+
+	/**
+	 * Times at which each busy simulated solver becomes free.
+	 */
+	private PriorityQueue<Long> _solverFreeAt = new PriorityQueue<Long>();
+	/**
+	 * Start times of queued submissions that are still waiting for a solver.
+	 */
+	private PriorityQueue<Long> _waiting = new PriorityQueue<Long>();
+
+	private AtomicInteger _ticket = new AtomicInteger();
+	private AtomicInteger _solving = new AtomicInteger();
+	private AtomicLong[] _requests = newCounters();
+	private AtomicLong[] _faultsInjected = newCounters();
+
+	private static AtomicLong[] newCounters()
+	{
+		AtomicLong[] counters = new AtomicLong[CaptchaTraderRequestType.values().length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new AtomicLong();
+		}
+		return counters;
+	}
+
+	/**
+	 * Set the distribution of time a simulated solver spends on one CAPTCHA.
+	 * @return This CaptchaTraderSimulator instance.
+	 */
+	public CaptchaTraderSimulator setSolveLatency(Latency latency)
+	{
+		_solveLatency = latency;
+		return this;
+	}
+
+	/**
+	 * Set the distribution of delay added to every reply, standing in for network round trips.
+	 * @return This CaptchaTraderSimulator instance.
+	 */
+	public CaptchaTraderSimulator setNetworkLatency(Latency latency)
+	{
+		_networkLatency = latency;
+		return this;
+	}
+
+	/**
+	 * Set the number of simulated solvers. Submissions beyond this many wait in a queue.
+	 * @param solvers The number of solvers, or 0 for unlimited (no queueing).
+	 * @return This CaptchaTraderSimulator instance.
+	 */
+	public CaptchaTraderSimulator setSolvers(int solvers)
+	{
+		_solvers = solvers;
+		return this;
+	}
+
+	/**
+	 * Set the credits reported for every user. Submissions are not charged.
+	 * @return This CaptchaTraderSimulator instance.
+	 */
+	public CaptchaTraderSimulator setCredits(int credits)
+	{
+		_credits = credits;
+		return this;
+	}
+
+	/**
+	 * Set the answer returned for every solved CAPTCHA.
+	 * @return This CaptchaTraderSimulator instance.
+	 */
+	public CaptchaTraderSimulator setAnswer(String answer)
+	{
+		_answer = answer;
+		return this;
+	}
+
+	/**
+	 * Gzip replies to callers that accept it. Replies are tiny, so this exercises the client's
+	 * decompression rather than saving bandwidth.
+	 * @return This CaptchaTraderSimulator instance.
+	 */
+	public CaptchaTraderSimulator setCompressReplies(boolean compressReplies)
+	{
+		_compressReplies = compressReplies;
+		return this;
+	}
+
+	/**
+	 * Make a fraction of calls of one type fail with the given error.
+	 * @param type The request type to fail.
+	 * @param rate The fraction of calls to fail, between 0 and 1.
+	 * @param status The status attribute of the error element.
+	 * @param message The error message.
+	 * @return This CaptchaTraderSimulator instance.
+	 */
+	public CaptchaTraderSimulator setErrorRate(CaptchaTraderRequestType type, double rate, String status, String message)
+	{
+		synchronized (_faults) {
+			if (rate <= 0) {
+				_faults.remove(type);
+			} else {
+				_faults.put(type, new Fault(rate, status, message));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Make a fraction of calls of one type get a reply that is not XML.
+	 * @param type The request type to fail.
+	 * @param rate The fraction of calls to fail, between 0 and 1.
+	 * @return This CaptchaTraderSimulator instance.
+	 */
+	public CaptchaTraderSimulator setMalformedRate(CaptchaTraderRequestType type, double rate)
+	{
+		return setErrorRate(type, rate, null, null);
+	}
+
+	/**
+	 * Start serving on an ephemeral port of the loopback interface.
+	 * @return This CaptchaTraderSimulator instance.
+	 * @throws IOException If the server socket cannot be opened.
+	 */
+	public CaptchaTraderSimulator start()
+		throws IOException
+	{
+		return start(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+	}
+
+	/**
+	 * Start serving on the given address.
+	 * @return This CaptchaTraderSimulator instance.
+	 * @throws IOException If the server socket cannot be opened.
+	 */
+	public CaptchaTraderSimulator start(InetSocketAddress address)
+		throws IOException
+	{
+		ThreadFactory daemons = new ThreadFactory() {
+			private AtomicInteger _count = new AtomicInteger();
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "captchatrader-simulator-" + _count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		_timer = Executors.newScheduledThreadPool(2, daemons);
+		_workers = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), daemons);
+		_server = HttpServer.create(address, 1024);
+		_server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange)
+				throws IOException
+			{
+				dispatch(exchange);
+			}
+		});
+		_server.setExecutor(_workers);
+		_server.start();
+		_port = _server.getAddress().getPort();
+		return this;
+	}
+
+	/**
+	 * Stop serving and abandon any submissions still being solved.
+	 */
+	public void stop()
+	{
+		if (_server != null) {
+			_server.stop(0);
+			_timer.shutdownNow();
+			_workers.shutdownNow();
+			_server = null;
+		}
+	}
+
+	/**
+	 * @return The address being served.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return _server == null ? null : _server.getAddress();
+	}
+
+	/**
+	 * @return The base URL to give to {@link com.captchatrader.CaptchaTrader#setBaseUrl(String) CaptchaTrader.setBaseUrl()}.
+	 */
+	public String getBaseUrl()
+	{
+		InetSocketAddress address = getAddress();
+		return address == null ? null : "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+	}
+
+	/**
+	 * @return The number of calls received of the given type.
+	 */
+	public long getRequestCount(CaptchaTraderRequestType type)
+	{
+		return _requests[type.ordinal()].get();
+	}
+
+	/**
+	 * @return The number of calls of the given type that were failed by error injection.
+	 */
+	public long getFaultCount(CaptchaTraderRequestType type)
+	{
+		return _faultsInjected[type.ordinal()].get();
+	}
+
+	/**
+	 * @return The number of submissions currently waiting for or being worked on by a solver.
+	 */
+	public int getSolving()
+	{
+		return _solving.get();
+	}
+
+	private void dispatch(HttpExchange exchange)
+		throws IOException
+	{
+		final CaptchaTraderExchange ex;
+		try {
+			ex = new CaptchaTraderExchange(exchange);
+		} catch (IOException ioe) {
+			exchange.sendResponseHeaders(413, -1);
+			exchange.close();
+			return;
+		}
+		ex.setCompressReplies(_compressReplies);
+		CaptchaTraderRequestType type = ex.type();
+		if (type == null) {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+		_requests[type.ordinal()].incrementAndGet();
+
+		Fault fault;
+		synchronized (_faults) {
+			fault = _faults.get(type);
+		}
+		long delay = sample(_networkLatency);
+		if (fault != null && nextDouble() < fault.rate) {
+			_faultsInjected[type.ordinal()].incrementAndGet();
+			final Fault f = fault;
+			reply(delay, new Reply() {
+				void send() throws IOException
+				{
+					if (f.status == null) {
+						ex.sendMalformed();
+					} else {
+						ex.sendError(f.status, f.message);
+					}
+				}
+			});
+			return;
+		}
+		if (ex.getParameter("username") == null || ex.getParameter("password") == null) {
+			if (type != CaptchaTraderRequestType.QUERY_WAIT_TIME) {
+				reply(delay, new Reply() {
+					void send() throws IOException { ex.sendError("401", "INVALID USER"); }
+				});
+				return;
+			}
+		}
+
+		switch (type) {
+		case SUBMIT:
+			if (ex.getFile("value") == null && ex.getParameter("value") == null) {
+				reply(delay, new Reply() {
+					void send() throws IOException { ex.sendError("400", "INVALID PARAMETERS"); }
+				});
+				return;
+			}
+			final String ticket = Integer.toString(_ticket.incrementAndGet());
+			_solving.incrementAndGet();
+			reply(delay + solve(), new Reply() {
+				void send() throws IOException
+				{
+					_solving.decrementAndGet();
+					ex.sendJobResponse(ticket, _answer);
+				}
+			});
+			break;
+		case ENQUEUE:
+			final String job = Integer.toString(_ticket.incrementAndGet());
+			reply(delay, new Reply() {
+				void send() throws IOException { ex.sendJobChallenge(job, "data:image/png;base64,"); }
+			});
+			break;
+		case QUERY_CREDIT:
+			reply(delay, new Reply() {
+				void send() throws IOException { ex.sendCredits(_credits); }
+			});
+			break;
+		case QUERY_WAIT_TIME:
+			final int[] queue = queue();
+			reply(delay, new Reply() {
+				void send() throws IOException { ex.sendQueue(queue[0], queue[1], queue[2]); }
+			});
+			break;
+		default:
+			reply(delay, new Reply() {
+				void send() throws IOException { ex.sendSuccess(); }
+			});
+		}
+	}
+
+	private synchronized double nextDouble()
+	{
+		return _random.nextDouble();
+	}
+
+	private synchronized long sample(Latency latency)
+	{
+		return Math.max(0, latency.sample(_random));
+	}
+
+	/**
+	 * Assign a submission to the solver that frees up first.
+	 * @return The milliseconds until the submission is solved, including time spent queued.
+	 */
+	private synchronized long solve()
+	{
+		long now = System.currentTimeMillis();
+		long solveTime = sample(_solveLatency);
+		if (_solvers <= 0) {
+			return solveTime;
+		}
+		long start = now;
+		if (_solverFreeAt.size() >= _solvers) {
+			start = Math.max(now, _solverFreeAt.poll());
+		}
+		_solverFreeAt.add(start + solveTime);
+		if (start > now) {
+			_waiting.add(start);
+		}
+		return start + solveTime - now;
+	}
+
+	/**
+	 * @return The simulated queue as {position, length, eta}: the submissions waiting for a solver,
+	 * the waiting plus those being solved, and the seconds until the last waiting one is picked up.
+	 */
+	private synchronized int[] queue()
+	{
+		long now = System.currentTimeMillis();
+		while (!_waiting.isEmpty() && _waiting.peek() <= now) {
+			_waiting.poll();
+		}
+		long last = now;
+		for (Long start : _waiting) {
+			last = Math.max(last, start);
+		}
+		int position = _waiting.size();
+		int length = _solving.get();
+		int eta = (int) ((last - now + 999) / 1000);
+		if (_solvers <= 0) {
+			eta = (int) Math.round(_solveLatency.mean() / 1000);
+		}
+		return new int[] {position, Math.max(position, length), eta};
+	}
+
+	private abstract static class Reply implements Runnable
+	{
+		abstract void send() throws IOException;
+		public void run()
+		{
+			try {
+				send();
+			} catch (IOException ioe) {
+				// the client has gone away
+			}
+		}
+	}
+
+	private void reply(long delay, Reply reply)
+	{
+		if (delay <= 0) {
+			reply.run();
+		} else {
+			_timer.schedule(reply, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,899 @@
+/**
+ * Copyright (C) 2011 by CaptchaTrader http://captchatrader.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * @author CaptchaTrader
+ */
+package com.captchatrader;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>CaptchaTraderSpool solves the CAPTCHA image files dropped into a set of directories.</p>
+ *
+ * <p>The directories are watched with a {@link java.nio.file.WatchService WatchService}. A file is
+ * taken once it has not been modified for {@link #setSettleTime(long) the settle time}, by renaming it
+ * into a subdirectory of the directory's <code>.captchatrader</code> directory that belongs to the spool,
+ * so several spools, in one process or several, may watch the same directory and each file is solved by
+ * one of them. Claimed files are solved through a
+ * {@link com.captchatrader.CaptchaTraderPipeline CaptchaTraderPipeline}, and no more are claimed than
+ * it has room for; files beyond that wait in their directory, so memory use does not grow with the
+ * backlog. A spool holds a lock on its claim subdirectory while it runs; files left claimed by a spool
+ * whose lock has been released, because it stopped before finishing them or its process died, are taken
+ * over when another spool starts on the directory or next retries a file.</p>
+ *
+ * <p>Each answer is written to a <code>.answer</code> sidecar file and/or a results log, and the image
+ * is then moved to the done directory, or deleted if there is none. Images the service rejects get a
+ * <code>.error</code> sidecar and go to the failed directory, by default <code>.captchatrader/failed</code>
+ * in their watched directory; failed images are never deleted. Images that fail for a reason that may
+ * pass, such as a network error, an overloaded service, an open circuit or an account out of credits,
+ * stay claimed and are submitted again after {@link #setRetryDelay(long) the retry delay}; an image whose
+ * result has been written out but that could not be moved on is not submitted again, only moved. Sidecars are
+ * written next to where the image went, or to the watched directory if it was deleted. Hidden files, directories
+ * and sidecars in a watched directory are never taken, so writers should create images under a hidden
+ * name and rename them when complete.</p>
+ *
+ * <PRE>
+ * Example:
+ *
+ *    CaptchaTraderSpool spool = new CaptchaTraderSpool(ct.setMaxConcurrentJobs(50), new File("inbox"))
+ *        .setDoneDirectory(new File("done"))
+ *        .setResultsLog(new File("answers.log"));
+ *    spool.start();
+ *    ...
+ *    spool.stop();   // finishes the files already claimed
+ * </PRE>
+ *
+ * @since v2012.2
+ * @version 2012.1
+ */
+public class CaptchaTraderSpool implements Closeable
+{
+	/**
+	 * The subdirectory of each watched directory that claimed files are moved to.
+	 */
+	public static final String CLAIM_DIRECTORY = ".captchatrader";
+	/**
+	 * The file in each spool's claim subdirectory that the spool holds a lock on while it runs.
+	 */
+	private static final String LOCK_FILE = ".lock";
+	public static final String ANSWER_SUFFIX = ".answer";
+	public static final String ERROR_SUFFIX = ".error";
+
+	private CaptchaTrader _client;
+	private List<Directory> _directories = new ArrayList<Directory>();
+	private int _maxInFlight;
+	private long _settleTime = 1000;
+	private File _doneDirectory = null;
+	private File _failedDirectory = null;
+	private long _retryDelay = 30000;
+	private boolean _sidecars = true;
+	private File _resultsLog = null;
+
+	private WatchService _watcher = null;
+	private Thread _thread = null;
+	private Writer _log = null;
+	private CountDownLatch _finished = null;
+	private volatile boolean _stopping = false;
+
+	private Flow.Subscriber<? super Object> _pipeline = null;
+	/**
+	 * Files the pipeline has asked for that have not been claimed yet.
+	 */
+	private long _demand = 0;
+	private boolean _cancelled = false;
+
+	private AtomicLong _claimed = new AtomicLong();
+	private AtomicLong _solved = new AtomicLong();
+	private AtomicLong _failed = new AtomicLong();
+	private AtomicLong _retried = new AtomicLong();
+	/**
+	 * The claimed files handed to the pipeline and not yet finished, at most the in-flight limit.
+	 */
+	private Set<Path> _inFlight = ConcurrentHashMap.<Path>newKeySet();
+	/**
+	 * Claimed files whose result has been written out but that could not be moved on yet, with where
+	 * they go, or themselves if they are to be deleted. Only the move is tried again, never the submission.
+	 */
+	private Map<Path, Path> _recorded = new ConcurrentHashMap<Path, Path>();
+	private long[] _seconds = new long[60];
+	private long[] _counts = new long[60];
+
+	private static class Directory
+	{
+		private Path path;
+		/**
+		 * This spool's claim subdirectory, set by start().
+		 */
+		private Path claims;
+		private FileChannel owner;
+		private boolean dirty = true;
+		/**
+		 * When to look again at files that were not ready, or 0.
+		 */
+		private long retryAt = 0;
+		/**
+		 * When to submit again the claimed files that failed for a passing reason, or 0; set by finish().
+		 */
+		private AtomicLong recoverAt = new AtomicLong();
+
+		private Directory(Path path)
+		{
+			this.path = path;
+		}
+
+		private void retry(long time)
+		{
+			if (retryAt == 0 || time < retryAt) {
+				retryAt = time;
+			}
+		}
+	}
+
+	/**
+	 * Create a spool with the client's concurrent job limit, or 16 if it has none.
+	 * @param client The client to submit CAPTCHAs with.
+	 * @param directories The directories to watch.
+	 */
+	public CaptchaTraderSpool(CaptchaTrader client, File... directories)
+	{
+		_client = client;
+		_maxInFlight = client.getMaxConcurrentJobs() > 0 ? client.getMaxConcurrentJobs() : 16;
+		for (File directory : directories) {
+			_directories.add(new Directory(directory.toPath()));
+		}
+	}
+
+	/**
+	 * Set the most files claimed and not yet finished at once.
+	 * @param maxInFlight The limit.
+	 * @return This CaptchaTraderSpool instance.
+	 */
+	public CaptchaTraderSpool setMaxInFlight(int maxInFlight)
+	{
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		_maxInFlight = maxInFlight;
+		return this;
+	}
+
+	/**
+	 * Set how long a file must go unmodified before it is taken, in case its writer is still writing.
+	 * Writers that rename complete files into place may set 0.
+	 * @param millis The settle time in milliseconds.
+	 * @return This CaptchaTraderSpool instance.
+	 */
+	public CaptchaTraderSpool setSettleTime(long millis)
+	{
+		_settleTime = millis;
+		return this;
+	}
+
+	/**
+	 * Set where solved images are moved to.
+	 * @param directory The directory, or null to delete solved images.
+	 * @return This CaptchaTraderSpool instance.
+	 */
+	public CaptchaTraderSpool setDoneDirectory(File directory)
+	{
+		_doneDirectory = directory;
+		return this;
+	}
+
+	/**
+	 * Set where images the service rejects are moved to.
+	 * @param directory The directory, or null for the <code>.captchatrader/failed</code> subdirectory of each watched directory.
+	 * @return This CaptchaTraderSpool instance.
+	 */
+	public CaptchaTraderSpool setFailedDirectory(File directory)
+	{
+		_failedDirectory = directory;
+		return this;
+	}
+
+	/**
+	 * Set how long images that failed for a reason that may pass stay claimed before they are submitted again.
+	 * @param millis The delay in milliseconds.
+	 * @return This CaptchaTraderSpool instance.
+	 */
+	public CaptchaTraderSpool setRetryDelay(long millis)
+	{
+		_retryDelay = millis;
+		return this;
+	}
+
+	/**
+	 * Set whether <code>.answer</code> and <code>.error</code> sidecar files are written. On by default.
+	 * @param sidecars Whether to write sidecars.
+	 * @return This CaptchaTraderSpool instance.
+	 */
+	public CaptchaTraderSpool setSidecars(boolean sidecars)
+	{
+		_sidecars = sidecars;
+		return this;
+	}
+
+	/**
+	 * Set a file every result is appended to, one line each: <code>path SOLVED ticket answer</code>,
+	 * <code>path FAILED - message</code> or <code>path RETRYING - message</code>, tab separated.
+	 * @param file The log file, or null for none.
+	 * @return This CaptchaTraderSpool instance.
+	 */
+	public CaptchaTraderSpool setResultsLog(File file)
+	{
+		_resultsLog = file;
+		return this;
+	}
+
+	/**
+	 * Start watching the directories.
+	 * @return This CaptchaTraderSpool instance.
+	 * @throws IOException If a directory cannot be watched or the results log cannot be opened.
+	 */
+	public synchronized CaptchaTraderSpool start()
+		throws IOException
+	{
+		if (_thread != null) {
+			throw new IllegalStateException("CaptchaTraderSpool is already started");
+		}
+		if (_finished != null && _finished.getCount() > 0) {
+			throw new IllegalStateException("CaptchaTraderSpool is still finishing the files it took");
+		}
+		_watcher = FileSystems.getDefault().newWatchService();
+		String id = "spool-" + UUID.randomUUID();
+		try {
+			for (Directory directory : _directories) {
+				directory.claims = directory.path.resolve(CLAIM_DIRECTORY).resolve(id);
+				Files.createDirectories(directory.claims);
+				directory.owner = FileChannel.open(directory.claims.resolve(LOCK_FILE),
+												   StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				if (directory.owner.tryLock() == null) {
+					throw new IOException("Cannot lock " + directory.claims);
+				}
+				directory.path.register(_watcher, StandardWatchEventKinds.ENTRY_CREATE);
+				directory.dirty = true;
+			}
+			for (File directory : new File[] { _doneDirectory, _failedDirectory }) {
+				if (directory != null) {
+					Files.createDirectories(directory.toPath());
+				}
+			}
+			if (_resultsLog != null) {
+				_log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_resultsLog, true),
+																  StandardCharsets.UTF_8));
+			}
+		} catch (IOException ioe) {
+			_watcher.close();
+			release();
+			throw ioe;
+		}
+		_stopping = false;
+		_demand = 0;
+		_cancelled = false;
+		_finished = new CountDownLatch(1);
+
+		CaptchaTraderPipeline pipeline = new CaptchaTraderPipeline(_client, _maxInFlight);
+		pipeline.subscribe(new Flow.Subscriber<CaptchaTraderResult>() {
+			private Flow.Subscription _results;
+			public void onSubscribe(Flow.Subscription subscription)
+			{
+				_results = subscription;
+				subscription.request(_maxInFlight);
+			}
+			public void onNext(CaptchaTraderResult result)
+			{
+				finish(result);
+				_results.request(1);
+			}
+			public void onError(Throwable throwable)
+			{
+				finished();
+			}
+			public void onComplete()
+			{
+				finished();
+			}
+		});
+		_pipeline = pipeline;
+		pipeline.onSubscribe(new Flow.Subscription() {
+			public void request(long n)
+			{
+				synchronized (CaptchaTraderSpool.this) {
+					_demand = _demand + n < 0 ? Long.MAX_VALUE : _demand + n;
+					CaptchaTraderSpool.this.notifyAll();
+				}
+			}
+			public void cancel()
+			{
+				synchronized (CaptchaTraderSpool.this) {
+					_cancelled = true;
+					CaptchaTraderSpool.this.notifyAll();
+				}
+			}
+		});
+
+		_thread = new Thread(new Runnable() {
+			public void run()
+			{
+				watch();
+			}
+		}, "captchatrader-spool");
+		_thread.setDaemon(true);
+		_thread.start();
+		return this;
+	}
+
+	/**
+	 * Stop taking files and wait for the ones already taken to be finished.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void stop()
+		throws InterruptedException
+	{
+		stop(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Stop taking files and wait up to a time for the ones already taken to be finished. Files still
+	 * being solved after that are finished and logged in the background, or if the process exits first,
+	 * by the next spool started on their directory. The spool cannot be started again until they are.
+	 * @param millis The most time to wait in milliseconds.
+	 * @return Whether all taken files were finished.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean stop(long millis)
+		throws InterruptedException
+	{
+		Thread thread;
+		CountDownLatch finished;
+		synchronized (this) {
+			if (_thread == null) {
+				return true;
+			}
+			_stopping = true;
+			notifyAll();
+			thread = _thread;
+			finished = _finished;
+		}
+		thread.join();
+		boolean done = finished.await(millis, TimeUnit.MILLISECONDS);
+		synchronized (this) {
+			try {
+				_watcher.close();
+			} catch (IOException ioe) {
+				// nothing left to watch
+			}
+			_thread = null;
+		}
+		return done;
+	}
+
+	/**
+	 * Close the results log and give up the claims once the last claimed file is finished, however
+	 * long stop() waited, so that files finished in the background are logged and not taken over.
+	 */
+	private void finished()
+	{
+		synchronized (this) {
+			if (_log != null) {
+				try {
+					_log.close();
+				} catch (IOException ioe) {
+					// every line was flushed as it was written
+				}
+				_log = null;
+			}
+		}
+		release();
+		_finished.countDown();
+	}
+
+	/**
+	 * Give up the claim subdirectories, removing those left empty.
+	 */
+	private synchronized void release()
+	{
+		for (Directory directory : _directories) {
+			if (directory.owner == null) {
+				continue;
+			}
+			try {
+				directory.owner.close();
+			} catch (IOException ioe) {
+				// closing releases the lock either way
+			}
+			directory.owner = null;
+			abandon(directory.claims);
+		}
+	}
+
+	/**
+	 * Remove a claim subdirectory that no longer holds any image, along with its lock file.
+	 */
+	private static void abandon(Path claims)
+	{
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(claims)) {
+			for (Path file : files) {
+				if (!file.getFileName().toString().equals(LOCK_FILE)) {
+					return;
+				}
+			}
+		} catch (IOException ioe) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(claims.resolve(LOCK_FILE));
+			Files.deleteIfExists(claims);
+		} catch (IOException ioe) {
+			// left for the next spool to remove
+		}
+	}
+
+	/**
+	 * Stop, waiting for the files already taken to be finished.
+	 */
+	public void close()
+		throws IOException
+	{
+		try {
+			stop();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return The number of files taken since the spool was created.
+	 */
+	public long getClaimed()
+	{
+		return _claimed.get();
+	}
+
+	/**
+	 * @return The number of files solved since the spool was created.
+	 */
+	public long getSolved()
+	{
+		return _solved.get();
+	}
+
+	/**
+	 * @return The number of files the service rejected since the spool was created.
+	 */
+	public long getFailed()
+	{
+		return _failed.get();
+	}
+
+	/**
+	 * @return The number of times a file failed for a reason that may pass and was kept for a retry.
+	 */
+	public long getRetried()
+	{
+		return _retried.get();
+	}
+
+	/**
+	 * @return The number of files being solved.
+	 */
+	public long getInFlight()
+	{
+		return _inFlight.size();
+	}
+
+	/**
+	 * Count the files waiting in the watched directories. This lists the directories, so it takes
+	 * time in proportion to the backlog but no memory.
+	 * @return The number of files not yet taken.
+	 */
+	public long getBacklog()
+	{
+		long count = 0;
+		for (Directory directory : _directories) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory.path)) {
+				for (Path file : files) {
+					if (eligible(file) && Files.isRegularFile(file)) {
+						count++;
+					}
+				}
+			} catch (IOException ioe) {
+				// a directory that cannot be listed has nothing that can be taken
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of files finished, solved or not, in the last minute.
+	 */
+	public synchronized long getThroughput()
+	{
+		long second = System.currentTimeMillis() / 1000;
+		long count = 0;
+		for (int i = 0; i < _seconds.length; i++) {
+			if (second - _seconds[i] < _seconds.length) {
+				count += _counts[i];
+			}
+		}
+		return count;
+	}
+
+	private synchronized void count()
+	{
+		long second = System.currentTimeMillis() / 1000;
+		int i = (int) (second % _seconds.length);
+		if (_seconds[i] != second) {
+			_seconds[i] = second;
+			_counts[i] = 0;
+		}
+		_counts[i]++;
+	}
+
+	private static boolean eligible(Path file)
+	{
+		String name = file.getFileName().toString();
+		return !name.startsWith(".") && !name.endsWith(ANSWER_SUFFIX) && !name.endsWith(ERROR_SUFFIX);
+	}
+
+	private void watch()
+	{
+		try {
+			for (Directory directory : _directories) {
+				recover(directory);
+			}
+			while (!_stopping) {
+				long now = System.currentTimeMillis();
+				long wait = 1000;
+				for (Directory directory : _directories) {
+					long recoverAt = directory.recoverAt.get();
+					if (recoverAt != 0 && recoverAt <= now && directory.recoverAt.compareAndSet(recoverAt, 0)) {
+						recover(directory);
+					}
+					if (directory.retryAt != 0 && directory.retryAt <= now) {
+						directory.retryAt = 0;
+						directory.dirty = true;
+					}
+					if (directory.dirty) {
+						// events only say something changed; a listing also covers overflowed events
+						directory.dirty = false;
+						scan(directory);
+					}
+					if (directory.retryAt != 0) {
+						wait = Math.min(wait, Math.max(directory.retryAt - System.currentTimeMillis(), 1));
+					}
+					recoverAt = directory.recoverAt.get();
+					if (recoverAt != 0) {
+						wait = Math.min(wait, Math.max(recoverAt - System.currentTimeMillis(), 1));
+					}
+				}
+				WatchKey key = _stopping ? null : _watcher.poll(wait, TimeUnit.MILLISECONDS);
+				while (key != null) {
+					key.pollEvents();
+					for (Directory directory : _directories) {
+						if (directory.path.equals(key.watchable())) {
+							directory.dirty = true;
+						}
+					}
+					key.reset();
+					key = _watcher.poll();
+				}
+			}
+		} catch (InterruptedException ie) {
+			// stopping
+		} finally {
+			_pipeline.onComplete();
+		}
+	}
+
+	/**
+	 * Resubmit the claimed files that are not being solved: those of spools that are no longer running,
+	 * and those kept for a retry.
+	 */
+	private void recover(Directory directory)
+		throws InterruptedException
+	{
+		adopt(directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory.claims)) {
+			for (Path file : files) {
+				if (!eligible(file) || !Files.isRegularFile(file) || _inFlight.contains(file)) {
+					continue;
+				}
+				Path target = _recorded.get(file);
+				if (target != null) {
+					try {
+						moveOn(file, target);
+						_recorded.remove(file);
+					} catch (IOException ioe) {
+						schedule(directory.path);
+					}
+					continue;
+				}
+				if (!awaitDemand()) {
+					return;
+				}
+				publish(file);
+			}
+		} catch (IOException ioe) {
+			// nothing to recover
+		}
+	}
+
+	/**
+	 * Move the files claimed by spools that are no longer running into this spool's claims. A spool
+	 * holds the lock on its claim subdirectory for as long as it runs, and the operating system releases
+	 * it if the spool's process dies, so a lock that can be taken means the files are abandoned.
+	 */
+	private void adopt(Directory directory)
+	{
+		try (DirectoryStream<Path> owners = Files.newDirectoryStream(directory.path.resolve(CLAIM_DIRECTORY))) {
+			for (Path owner : owners) {
+				Path lockFile = owner.resolve(LOCK_FILE);
+				if (owner.equals(directory.claims) || !Files.isRegularFile(lockFile)) {
+					continue;
+				}
+				try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+					FileLock lock;
+					try {
+						lock = channel.tryLock();
+					} catch (OverlappingFileLockException ofle) {
+						// held by a spool running in this process
+						continue;
+					}
+					if (lock == null) {
+						// held by a spool running in another process
+						continue;
+					}
+					try (DirectoryStream<Path> files = Files.newDirectoryStream(owner)) {
+						for (Path file : files) {
+							Path adopted = directory.claims.resolve(file.getFileName());
+							if (eligible(file) && !Files.exists(adopted)) {
+								Files.move(file, adopted, StandardCopyOption.ATOMIC_MOVE);
+								Path target = _recorded.remove(file);
+								if (target != null) {
+									_recorded.put(adopted, target.equals(file) ? adopted : target);
+								}
+							}
+						}
+					}
+				} catch (IOException ioe) {
+					// tried again on the next recovery
+					continue;
+				}
+				abandon(owner);
+			}
+		} catch (IOException ioe) {
+			// no claim subdirectories
+		}
+	}
+
+	private void scan(Directory directory)
+		throws InterruptedException
+	{
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory.path)) {
+			for (Path file : files) {
+				if (_stopping) {
+					return;
+				}
+				if (!eligible(file)) {
+					continue;
+				}
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				} catch (IOException ioe) {
+					continue;
+				}
+				if (!attributes.isRegularFile()) {
+					continue;
+				}
+				long age = System.currentTimeMillis() - attributes.lastModifiedTime().toMillis();
+				if (age < _settleTime) {
+					directory.retry(System.currentTimeMillis() + _settleTime - age);
+					continue;
+				}
+				if (!awaitDemand()) {
+					return;
+				}
+				Path claimed = directory.claims.resolve(file.getFileName());
+				if (Files.exists(claimed)) {
+					// an image of the same name is still being solved
+					directory.retry(System.currentTimeMillis() + 1000);
+					continue;
+				}
+				try {
+					Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+				} catch (NoSuchFileException nsfe) {
+					// taken by another spool
+					continue;
+				} catch (IOException ioe) {
+					directory.retry(System.currentTimeMillis() + 1000);
+					continue;
+				}
+				publish(claimed);
+			}
+		} catch (IOException ioe) {
+			directory.retry(System.currentTimeMillis() + 1000);
+		}
+	}
+
+	/**
+	 * Wait until the pipeline has room for another file.
+	 * @return False if the spool is stopping.
+	 */
+	private synchronized boolean awaitDemand()
+		throws InterruptedException
+	{
+		while (_demand == 0 && !_stopping && !_cancelled) {
+			wait();
+		}
+		return !_stopping && !_cancelled;
+	}
+
+	private void publish(Path claimed)
+	{
+		synchronized (this) {
+			_demand--;
+		}
+		_claimed.incrementAndGet();
+		_inFlight.add(claimed);
+		_pipeline.onNext(claimed.toFile());
+	}
+
+	/**
+	 * Write out a result and move its image on, or keep it claimed for a retry.
+	 */
+	private void finish(CaptchaTraderResult result)
+	{
+		Path claimed = ((File) result.getCaptcha()).toPath();
+		Path source = claimed.getParent().getParent().getParent();
+		String name = claimed.getFileName().toString();
+		boolean success = result.isSuccess();
+		Path target = null;
+		try {
+			if (!success && passing(result.getError())) {
+				log(source.resolve(name), "RETRYING", null, String.valueOf(result.getError()));
+				retry(source, claimed);
+				return;
+			}
+			File destination = success ? _doneDirectory : _failedDirectory;
+			Path directory = destination != null ? destination.toPath()
+				: success ? source : source.resolve(CLAIM_DIRECTORY).resolve("failed");
+			String message = success ? result.getAnswer() : String.valueOf(result.getError());
+			// the sidecar goes first, so whoever sees the image can read its answer
+			if (_sidecars) {
+				if (!success) {
+					Files.createDirectories(directory);
+				}
+				Path sidecar = directory.resolve(name + (success ? ANSWER_SUFFIX : ERROR_SUFFIX));
+				Path temp = directory.resolve("." + sidecar.getFileName() + ".tmp");
+				Files.write(temp, (message + "\n").getBytes(StandardCharsets.UTF_8));
+				Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			log(source.resolve(name), success ? "SOLVED" : "FAILED", result.getTicket(), message);
+			(success ? _solved : _failed).incrementAndGet();
+			target = success && destination == null ? claimed : directory.resolve(name);
+			moveOn(claimed, target);
+		} catch (IOException ioe) {
+			// the image stays claimed
+			if (target != null) {
+				// its result is out, so only the move is tried again
+				_recorded.put(claimed, target);
+				_inFlight.remove(claimed);
+				schedule(source);
+			} else {
+				retry(source, claimed);
+			}
+		} finally {
+			_inFlight.remove(claimed);
+			count();
+		}
+	}
+
+	/**
+	 * Move a finished image to where it goes, or delete it if that is itself.
+	 */
+	private static void moveOn(Path claimed, Path target)
+		throws IOException
+	{
+		if (target.equals(claimed)) {
+			Files.deleteIfExists(claimed);
+		} else {
+			Files.createDirectories(target.getParent());
+			Files.move(claimed, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Keep a claimed image for another try later.
+	 */
+	private void retry(Path source, Path claimed)
+	{
+		_retried.incrementAndGet();
+		// out of flight first, so that the recovery scheduled here or already due picks it up
+		_inFlight.remove(claimed);
+		schedule(source);
+	}
+
+	/**
+	 * Look again at the claimed files of a watched directory after the retry delay.
+	 */
+	private void schedule(Path source)
+	{
+		for (Directory directory : _directories) {
+			if (directory.path.equals(source)) {
+				directory.recoverAt.compareAndSet(0, System.currentTimeMillis() + _retryDelay);
+			}
+		}
+	}
+
+	/**
+	 * @return Whether a failure may pass, so that submitting the same image again later may succeed.
+	 * Only a request the service rejected as invalid will not.
+	 */
+	private static boolean passing(Throwable error)
+	{
+		return !(error instanceof CaptchaTraderException)
+			|| ((CaptchaTraderException) error).getErrorType() != CaptchaTraderErrorType.REQUEST;
+	}
+
+	private synchronized void log(Path file, String outcome, String ticket, String message)
+		throws IOException
+	{
+		if (_log == null) {
+			return;
+		}
+		_log.write(file + "\t" + outcome + "\t" + (ticket == null ? "-" : ticket) + "\t"
+				   + message.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ') + "\n");
+		_log.flush();
+	}
+}
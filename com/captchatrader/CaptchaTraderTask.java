@@ -22,6 +22,35 @@ import java.util.concurrent.TimeoutException;
  */
 public class CaptchaTraderTask<V> extends FutureTask<V>
 {
+	/**
+	 * The task being run by the current thread, through which its requests can be aborted
+	 */
+	private static final ThreadLocal<CaptchaTraderTask<?>> _current = new ThreadLocal<CaptchaTraderTask<?>>();
+	/**
+	 * The request in flight, aborted when the task is cancelled
+	 */
+	private CaptchaTraderRequest _request = null;
+	/**
+	 * The ticket assigned to the job, kept so that a cancelled job can still be responded to
+	 */
+	private String _ticket = null;
+	/**
+	 * Run when the task is cancelled
+	 */
+	private Runnable _onCancel = null;
+	/**
+	 * Whether a job has been handed to the task
+	 */
+	private boolean _handed = false;
+	/**
+	 * The File or URL of the job handed to the task, until the task takes it
+	 */
+	private Object _captcha = null;
+	/**
+	 * The ResponseEvent of the job handed to the task, until the task takes it
+	 */
+	private ResponseEvent _event = null;
+
 	/**
 	 * Create a CaptchaTraderTask for submitting a captcha job in asynchronous mode
 	 * @param callable The CaptchaTrader object
@@ -57,13 +86,154 @@ public class CaptchaTraderTask<V> extends FutureTask<V>
 	}
 
 	/**
-	 * CaptchaTraderTask may not be cancelled once submitted
-	 * So this method does not do anything
-	 * @return false
+	 * The ticket assigned to the job. A job cancelled after the server answered it still has a ticket,
+	 * which should be responded to with {@link com.captchatrader.CaptchaTrader#respond(String, boolean) CaptchaTrader.respond()}.
+	 * @return The ticket id, or null if none has been assigned yet.
+	 * @since v2012.2
+	 */
+	public synchronized String getTicket()
+	{
+		return _ticket;
+	}
+
+	/**
+	 * Cancel the job. If it is waiting to run, it never runs. If it is running and mayInterruptIfRunning is set,
+	 * its connection is closed so that its thread is released right away; otherwise its request is left to
+	 * finish, so that the ticket it gets can be responded to.
+	 * @param mayInterruptIfRunning Whether to abort a job already running.
+	 * @return false if the job could not be cancelled, typically because it has already completed.
 	 */ 
 	@Override 
 	public boolean cancel(boolean mayInterruptIfRunning)
 	{
-		return false;
+		if (!super.cancel(mayInterruptIfRunning)) {
+			return false;
+		}
+		if (mayInterruptIfRunning) {
+			CaptchaTraderRequest request;
+			synchronized (this) {
+				request = _request;
+				_request = null;
+			}
+			if (request != null) {
+				request.abort();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void run()
+	{
+		_current.set(this);
+		try {
+			super.run();
+		} finally {
+			_current.remove();
+		}
+	}
+
+	@Override
+	protected void done()
+	{
+		cancelled();
+	}
+
+	/**
+	 * Run what was set to be done on cancellation, once, if the task has been cancelled.
+	 */
+	private void cancelled()
+	{
+		Runnable onCancel = null;
+		synchronized (this) {
+			if (isCancelled()) {
+				onCancel = _onCancel;
+				_onCancel = null;
+			}
+		}
+		if (onCancel != null) {
+			onCancel.run();
+		}
+	}
+
+	/**
+	 * @return The task being run by the current thread, or null.
+	 */
+	static CaptchaTraderTask<?> current()
+	{
+		return _current.get();
+	}
+
+	/**
+	 * Set what to do when the task is cancelled.
+	 */
+	void onCancel(Runnable onCancel)
+	{
+		synchronized (this) {
+			_onCancel = onCancel;
+		}
+		// the task may have been cancelled before it was handed over
+		cancelled();
+	}
+
+	/**
+	 * Track a request about to be sent, so that cancelling the task aborts it.
+	 * @return false if the task has already been cancelled, and the request must not be sent.
+	 */
+	synchronized boolean attach(CaptchaTraderRequest request)
+	{
+		if (isCancelled()) {
+			return false;
+		}
+		_request = request;
+		return true;
+	}
+
+	/**
+	 * Stop tracking a request that has completed.
+	 */
+	synchronized void detach(CaptchaTraderRequest request)
+	{
+		if (_request == request) {
+			_request = null;
+		}
+	}
+
+	/**
+	 * Hand the task the job it is to run.
+	 * @return false if the task has already been handed a job or has finished, and cannot take this one.
+	 */
+	synchronized boolean hand(Object captcha, ResponseEvent event)
+	{
+		if (_handed || isDone()) {
+			return false;
+		}
+		_handed = true;
+		_captcha = captcha;
+		_event = event;
+		return true;
+	}
+
+	/**
+	 * Take the job handed to the task, once.
+	 * @return The File or URL and the ResponseEvent of the job, or null if it has been taken already.
+	 */
+	synchronized Object[] take()
+	{
+		if (_captcha == null && _event == null) {
+			return null;
+		}
+		Object[] job = { _captcha, _event };
+		_captcha = null;
+		_event = null;
+		return job;
+	}
+
+	/**
+	 * Record the ticket the server assigned to the job.
+	 */
+	synchronized void assign(String ticket)
+	{
+		_ticket = ticket;
 	}
 }
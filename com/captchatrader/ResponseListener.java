@@ -0,0 +1,44 @@
+package com.captchatrader;
+
+/**
+ * A {@link com.captchatrader.ResponseEvent ResponseEvent} that is also told when a job fails or takes too long.
+ * Exactly one of respond(), failed() or timedOut() is called for each job.
+ *
+ * <PRE>
+ * Example:
+ *
+ *    import com.captchatrader.*;
+ *    public class MyResponseListener implements ResponseListener
+ *    {
+ *        public void respond(String response)
+ *        {
+ *            System.out.println("Got response: " + response);
+ *        }
+ *        public void failed(Throwable error)
+ *        {
+ *            System.out.println("Job failed: " + error);
+ *        }
+ *        public void timedOut()
+ *        {
+ *            System.out.println("No response in time");
+ *        }
+ *    }
+ * </PRE>
+ *
+ * @see com.captchatrader.CaptchaTraderDispatcher
+ * @since v2012.2
+ * @version 2012.1
+ */
+public interface ResponseListener extends ResponseEvent
+{
+	/**
+	 * The callback method will be called if the job submitted with this ResponseListener failed
+	 * @param error The exception the job failed with
+	 */
+	public void failed(Throwable error);
+
+	/**
+	 * The callback method will be called if no response arrived within the dispatcher's timeout
+	 */
+	public void timedOut();
+}